@@ -1,297 +1,112 @@
-import java.time.Duration;
-import java.time.Instant;
-import java.util.HashMap;
-import java.util.Map;
-
-// AI class determines the column to place its token using a min-max algorithm
+// AI class determines the column to place its token. The AI itself only tracks
+// which player it is, the column is picked by a pluggable SearchEngine
 public class AI {
-    // DIRECTIONS is a cardinal direction array formed in the following order:
-    // NE, E, SE, S
-    // We skip N because it is impossible for another token to be on top of the
-    // token you just placed. We skip SW, W, NW because they are represented by the
-    // other directions
-    private static int[][] DIRECTIONS = new int[][] { { 1, 1 }, { 0, 1 }, { -1, 1 }, { -1, 0 }, };
     // Boolean that keeps stores if AI is player 1
     private Boolean isPlayerOne;
-    // Model to store scores for each possible column given a string
-    // representation of the current board
-    private Map<Long, double[]> model;
-    // heightsMasks is a memoization map to store bitmasks for each height
-    private Map<Long, Long> heightsMasks;
-
+    // Engine that scores the columns of a board
+    private SearchEngine engine;
+    // scores is a reusable buffer for the scores of the columns in chooseCol
+    private double[] scores;
+    // position is the board of the game, kept up to date through onMove
+    private Position position;
+    // metrics records every call to chooseCol, and may be shared with other AIs
+    private SearchMetrics metrics;
+    // printScores prints the scores of every move for debugging
+    private boolean printScores;
+
+    // Creates an AI that plays from the fully solved averaging model of the default
+    // board. The model is shared by every AI in the process, see ModelRegistry
     public AI(Boolean isPlayerOne) {
-        this.isPlayerOne = isPlayerOne;
-        this.model = new HashMap<Long, double[]>();
-        this.heightsMasks = new HashMap<Long, Long>();
-
-        // Create the internal representation for the board, which is a 64 bit long
-        // with the values of column taking the first ROW*COL bits. For a standard 6x7
-        // board, this would be the first 42 bits. The next bits are the heights of each
-        // column which would be 3*COL since Connect4 at most has 6 rows which can be
-        // represented with 3 bits. So for a standard 6x7 board, this would be the next
-        // 21 bits. Thus for a standard board, we would need 63 bits to encode the
-        // information.
-        long board = 0L;
-        // Calculate time duration to for AI to generate the model
-        System.out.println("Generating AI model...");
-        Instant start = Instant.now();
-        generateModel(board, this.model, this.heightsMasks);
-        Instant end = Instant.now();
-
-        Duration duration = Duration.between(start, end);
-        System.out.println("Method duration: " + duration.toString());
+        this(isPlayerOne, ModelRegistry.engine(Geometry.DEFAULT));
     }
 
-    // chooseCol takes in the connect4 board as input and returns the column
-    // to place a token in
-    public int chooseCol(Board.Token[][] board) {
-        // Only flip the board if AI is player2
-        if (!this.isPlayerOne) {
-            for (int i = 0; i < board.length; i++) {
-                for (int j = 0; j < board[i].length; j++) {
-                    if (board[i][j] == Board.Token.PLAYER_1) {
-                        board[i][j] = Board.Token.PLAYER_2;
-                    } else if (board[i][j] == Board.Token.PLAYER_2) {
-                        board[i][j] = Board.Token.PLAYER_1;
-                    }
-                }
-            }
-        }
-        // Generate the model key
-        long modelKey = getModelKey(board);
-        // Assert that we have the model key
-        assert this.model.containsKey(modelKey) : "model does not have key";
-        // We should always have the key in the memo map
-        double[] scores = this.model.get(modelKey);
-        // Print scores for debugging purposes
-        String[] scoresString = new String[scores.length];
-        for (int i = 0; i < scores.length; i++) {
-            scoresString[i] = String.format("%.2f", scores[i]);
-        }
-        System.out.println(String.join(",", scoresString));
-        // Choose index with max score
-        double bestScore = -1;
-        int bestScoreIndex = 0;
-        for (int i = 0; i < scores.length; i++) {
-            if (scores[i] > bestScore) {
-                bestScore = scores[i];
-                bestScoreIndex = i;
-            }
-        }
-        return bestScoreIndex;
+    // Creates an AI that plays from an averaging model stored in the given table.
+    // Pass a bounded table (see TranspositionTable.bounded) to solve inside a fixed
+    // memory budget, in which case evicted positions are solved again when they
+    // are needed, or an OffHeapTranspositionTable for budgets beyond the heap
+    public AI(Boolean isPlayerOne, TranspositionTable model) {
+        this(isPlayerOne, new AveragingModelEngine(model));
     }
 
-    // generateModel returns a list of scores that represents the win/not-lose
-    // probability for that move and that player
-    private static double[] generateModel(long board, Map<Long, double[]> model, Map<Long, Long> heightsMasks) {
-        long modelKey = getModelKey(board, heightsMasks);
-        // Check if we have the board in the model, if we do then return
-        if (model.containsKey(modelKey)) {
-            return model.get(modelKey);
-        }
-        // Get our scores table that lists the scores for each possible col
-        double[] scores = generateModelScores(board, model, heightsMasks);
-
-        // Store the possible scores in the model
-        model.put(modelKey, scores);
-
-        return scores;
+    public AI(Boolean isPlayerOne, SearchEngine engine) {
+        this(isPlayerOne, engine, new SearchMetrics());
     }
 
-    // generateModel returns a list of scores that represents the win/not-lose
-    // probability for that move and that player
-    private static double[] generateModelScores(long board, Map<Long, double[]> model, Map<Long, Long> heightsMasks) {
-        // Create our scores table that lists the scores for each possible col
-        double[] scores = new double[Board.COLS];
-        // Initialize our scores table with -1 indicating there is no score
-        for (int col = 0; col < Board.COLS; col++) {
-            scores[col] = -1;
-        }
-        // Check if we can automatically win with any of the columns
-        // Return early if we find any automatic wins
-        for (int col = 0; col < Board.COLS; col++) {
-            long height = getColHeight(board, col);
-            // Skip columns that are full
-            if (height == Board.ROWS) {
-                continue;
-            }
-            // Place token in bottom-most possible row
-            board = setToken(board, height, col);
-            board = setColHeight(board, col, height + 1);
-            // Check if automatic win
-            Board.State gameState = getGameState(board, col);
-            // Undo the move
-            board = setColHeight(board, col, height);
-            board = unsetToken(board, height, col);
-            // Check the game state if we won
-            if (gameState == Board.State.PLAYER_1_WON) {
-                scores[col] = 1;
-                return scores;
-            }
-            // If we tied with this move, set the score to 0.5 but don't immediately return
-            else if (gameState == Board.State.TIED) {
-                scores[col] = 0.5;
-            }
-        }
-        // Can choose one of 7 columns to place a token.
-        for (int col = 0; col < Board.COLS; col++) {
-            long height = getColHeight(board, col);
-            // Skip columns that are full or lead to a tie
-            if (height == Board.ROWS || scores[col] != -1) {
-                continue;
-            }
-            // Place token in bottom-most possible row
-            board = setToken(board, height, col);
-            board = setColHeight(board, col, height + 1);
-
-            // Invert the board to represent the board from the other player's perspective
-            board = invertSignificantBits(board, Board.ROWS * Board.COLS);
-            // Calculate the scores for this move
-            double[] newScores = generateModel(board, model, heightsMasks);
-            // Invert the board to represent the board from the original player's
-            // perspective
-            board = invertSignificantBits(board, Board.ROWS * Board.COLS);
-
-            // Get scores for each col
-            double totalScore = 0;
-            double totalMoves = 0;
-            for (int i = 0; i < Board.COLS; i++) {
-                // Do not count the scores that are non-valid
-                if (newScores[i] == -1) {
-                    continue;
-                }
-                // Take the inverse of the score as it's our opponent who's taking the turn.
-                totalScore += 1 - newScores[i];
-                totalMoves++;
-            }
-            scores[col] = totalScore / totalMoves;
-
-            // Undo the move
-            board = setColHeight(board, col, height);
-            board = unsetToken(board, height, col);
-        }
-        // Store the possible scores in the model
-        return scores;
+    // Creates an AI that records its searches in metrics, e.g. to add up the
+    // searches of all the games of a process
+    public AI(Boolean isPlayerOne, SearchEngine engine, SearchMetrics metrics) {
+        this.isPlayerOne = isPlayerOne;
+        this.engine = engine;
+        this.scores = new double[engine.getGeometry().cols()];
+        this.position = engine.getGeometry().newPosition();
+        this.metrics = metrics;
     }
 
-    private static long getColHeight(long board, long col) {
-        // 7 represents 111
-        // Get height of the col which are the bits [ROW*COL+3*col,ROW*COL+3*col+3)
-        long mask = 7L << (Board.ROWS * Board.COLS + 3 * col);
-        return (board & mask) >> (Board.ROWS * Board.COLS + 3 * col);
+    public SearchEngine getEngine() {
+        return this.engine;
     }
 
-    private static long setColHeight(long board, long col, long height) {
-        // Get height of the col which are the bits [ROW*COL+3*col,ROW*COL+3*col+3)
-        long mask = 7L << (Board.ROWS * Board.COLS + 3 * col);
-        // Remove the masked bits from the number
-        long clearedNumber = board & ~mask;
-        // Place the inverted bits into their original position
-        return clearedNumber | (height << (Board.ROWS * Board.COLS + 3 * col));
+    public SearchMetrics getMetrics() {
+        return this.metrics;
     }
 
-    private static long setToken(long board, long row, long col) {
-        // The position of the token is at ROW*col+row
-        long mask = 1L << (Board.ROWS * col + row);
-        // Place the inverted bits into their original position
-        return board | mask;
+    // isProven returns whether the last column chosen is backed by the end of the
+    // game, see SearchEngine.isProven
+    public boolean isProven() {
+        return this.engine.isProven();
     }
 
-    private static long unsetToken(long board, long row, long col) {
-        // The position of the token is at ROW*col+row
-        long mask = 1L << (Board.ROWS * col + row);
-        // Remove the masked bit from the number
-        return board & ~mask;
+    // setPrintScores turns printing the scores of every chosen move on or off. It
+    // is off by default
+    public void setPrintScores(boolean printScores) {
+        this.printScores = printScores;
     }
 
-    private static long invertSignificantBits(long number, int k) {
-        // Create a mask with k significant bits set to 1
-        long mask = (1L << k) - 1; // Example: k=4 -> mask=1111 (binary)
-
-        // Extract the significant bits from the number
-        long significantBits = number & mask;
-
-        // Invert the significant bits
-        long invertedBits = ~significantBits & mask;
-
-        // Combine the inverted bits back into the number
-        // Remove the original significant bits from the number
-        long clearedNumber = number & ~mask;
-
-        // Place the inverted bits into their original position
-        return clearedNumber | invertedBits;
+    // onMove tells the AI that a token was placed in col, by either player. The AI
+    // keeps its own copy of the board with it, so that choosing a column doesn't
+    // need the board passed in
+    public void onMove(int col) {
+        this.position.play(col);
     }
 
-    // Gets game state based on col that a token was just placed in
-    private static Board.State getGameState(long board, long col) {
-        long row = getColHeight(board, col) - 1;
-        // All cardinal directions except N starting from NE going clockwise
-        for (int d = 0; d < DIRECTIONS.length; d++) {
-            // Calculate the streak
-            int streak = 0;
-
-            for (int[] modifier : new int[][] { { 1, 1 }, { -1, -1 } }) {
-                long x = row;
-                long y = col;
-                while (0 <= x && x < Board.ROWS && 0 <= y && y < Board.COLS
-                        && (board & (1 << (Board.ROWS * y + x))) > 0 && x < getColHeight(board, y)) {
-                    streak += 1;
-                    x += DIRECTIONS[d][0] * modifier[0];
-                    y += DIRECTIONS[d][1] * modifier[1];
-                }
-            }
-            // Subtract 1 from streak to prevent double counting
-            streak -= 1;
+    // chooseCol returns the column to place a token in on the board built from
+    // the moves passed to onMove
+    public int chooseCol() {
+        assert this.position.moves() % 2 == (this.isPlayerOne ? 0 : 1) : "not the AI's turn";
+        return chooseCol(this.position);
+    }
 
-            if (streak >= Board.WIN_CONDITION) {
-                return Board.State.PLAYER_1_WON;
-            }
-        }
-        // Check if all cols have maximum height
-        for (int i = 0; i < Board.COLS; i++) {
-            // If we have a height that is not the max, then the game is still live
-            if (getColHeight(board, i) != Board.ROWS) {
-                return Board.State.LIVE;
-            }
-        }
-        // If all heights are at the max, then the game is tied
-        return Board.State.TIED;
+    // chooseCol takes in the connect4 board as input and returns the column
+    // to place a token in
+    public int chooseCol(Board.Token[][] board) {
+        // The AI is the player to move
+        Board.Token player = this.isPlayerOne ? Board.Token.PLAYER_1 : Board.Token.PLAYER_2;
+        return chooseCol(Position.fromTokens(this.engine.getGeometry(), board, player));
     }
 
-    private static long getModelKey(Board.Token[][] board) {
-        // Convert board into internal representation of board
-        long boardLong = 0L;
-        for (int col = 0; col < Board.COLS; col++) {
-            int row = Board.ROWS - 1;
-            while (row >= 0 && board[row][col] == Board.Token.EMPTY) {
-                row--;
-            }
-            boardLong = setColHeight(boardLong, col, row + 1);
-            // Create the bit representation of the column
-            for (int i = 0; i <= row; i++) {
-                // If the token is player2, then skip
-                if (board[i][col] == Board.Token.PLAYER_2) {
-                    continue;
-                }
-                boardLong = setToken(boardLong, i, col);
-            }
-        }
-        return boardLong;
+    // chooseCol returns the column to place a token in after the columns of moves
+    // were played from an empty board, see PositionCodec. The AI must be the
+    // player to move
+    public int chooseCol(CharSequence moves) {
+        Position position = PositionCodec.parse(this.engine.getGeometry(), moves);
+        assert position.moves() % 2 == (this.isPlayerOne ? 0 : 1) : "not the AI's turn";
+        return chooseCol(position);
     }
 
-    private static long getModelKey(long board, Map<Long, Long> heightsMasks) {
-        // Get the full heights representation, which is all the bits after the board
-        long heights = board & ~((1L << Board.ROWS * Board.COLS) - 1);
-        if (heightsMasks.containsKey(heights)) {
-            return heights | (board & heightsMasks.get(heights));
+    private int chooseCol(Position position) {
+        double[] scores = this.scores;
+        long start = System.nanoTime();
+        int col = this.engine.chooseCol(position, scores);
+        this.engine.recordSearch(this.metrics, System.nanoTime() - start);
+        if (!this.printScores) {
+            return col;
         }
-        // Generate heights mask
-        long heightMask = 0L;
-        for (int col = 0; col < Board.COLS; col++) {
-            long height = getColHeight(board, col);
-            heightMask = heightMask | (((1L << height) - 1) << Board.ROWS * col);
+        // Print scores for debugging purposes
+        String[] scoresString = new String[scores.length];
+        for (int i = 0; i < scores.length; i++) {
+            scoresString[i] = String.format("%.2f", scores[i]);
         }
-        heightsMasks.put(heights, heightMask);
-        return heights | (board & heightMask);
+        System.out.println(String.join(",", scoresString));
+        return col;
     }
 }
@@ -0,0 +1,370 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// AveragingModelEngine solves the whole game tree up front and scores every
+// column with the average of the scores of the opponent's replies. A win scores
+// 1 and a tie scores 0.5
+//
+// The model can be generated in parallel. The first few plies of the tree are
+// split into ForkJoin tasks, each of which solves its subtree sequentially, and
+// all tasks share their results through a concurrent model.
+//
+// A generated model can be saved to a ModelFile and loaded again later, which
+// skips generating it at startup.
+//
+// A position and its mirror image have mirrored scores, so the model only stores
+// one of them under Position.canonicalKey.
+//
+// Solving needs a unique key per position, so the engine only plays on boards
+// whose positions fit in a long.
+public class AveragingModelEngine implements SearchEngine {
+    // Initial capacity of the model. The model grows as needed, this only avoids
+    // rehashing while the model is small
+    private static final int MODEL_CAPACITY = 1 << 20;
+    // Number of subtrees to aim for per thread when generating in parallel, so
+    // that threads that finish early can steal more work
+    private static final int TASKS_PER_THREAD = 16;
+    // Board the model is solved for
+    private Geometry geometry;
+    // Model to store scores for each possible column given the model key of the
+    // current board. Engines that play from a file only create it on the first
+    // position missing from the file
+    private TranspositionTable model;
+    // file is the model loaded from disk, null if the model was generated
+    private ModelFile file;
+    // plyScores holds scratch buffers for the scores of each ply so that the
+    // recursion in generateModel doesn't allocate
+    private double[][] plyScores;
+    // Statistics of the last call to chooseCol, see recordSearch. Every position
+    // visited is one lookup in the model, so the nodes are the hits and the misses
+    private long hits;
+    private long misses;
+    private long collisions;
+    private int depth;
+
+    public AveragingModelEngine() {
+        this(Geometry.DEFAULT);
+    }
+
+    public AveragingModelEngine(Geometry geometry) {
+        this(geometry, new TranspositionTable(geometry.cols(), MODEL_CAPACITY));
+    }
+
+    public AveragingModelEngine(TranspositionTable model) {
+        this(Geometry.DEFAULT, model);
+    }
+
+    public AveragingModelEngine(Geometry geometry, TranspositionTable model) {
+        this(geometry, model, 1);
+    }
+
+    // Creates an engine that generates its model with parallelism threads. The
+    // model must be concurrent (see TranspositionTable.concurrent) to use more
+    // than one thread
+    public AveragingModelEngine(Geometry geometry, TranspositionTable model, int parallelism) {
+        checkGeometry(geometry);
+        if (model.width() != geometry.cols()) {
+            throw new IllegalArgumentException("model width " + model.width() + " doesn't match board " + geometry);
+        }
+        if (parallelism > 1 && !model.isConcurrent()) {
+            throw new IllegalArgumentException("parallel generation needs a concurrent model");
+        }
+        this.geometry = geometry;
+        this.model = model;
+        this.plyScores = new double[geometry.cells() + 1][geometry.cols()];
+
+        // Nothing is printed, callers that show progress time the constructor themselves
+        Position position = geometry.newPosition();
+        if (parallelism > 1) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new ModelTask(position, this.model, splitPly(parallelism, geometry.cols())));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            generateModel(position, this.model, this.plyScores);
+        }
+    }
+
+    // Creates an engine that plays from a model loaded from disk. Positions missing
+    // from the file are solved into an in-memory model of the engine. The file is
+    // read only, so one file can back the engines of many threads
+    public AveragingModelEngine(Geometry geometry, ModelFile file) {
+        checkGeometry(geometry);
+        this.geometry = geometry;
+        this.file = file;
+        this.plyScores = new double[geometry.cells() + 1][geometry.cols()];
+    }
+
+    // load creates an engine from the model file at path, which must have been
+    // solved for geometry
+    public static AveragingModelEngine load(Geometry geometry, Path path) throws IOException {
+        return new AveragingModelEngine(geometry, ModelFile.load(geometry, path));
+    }
+
+    // save writes the generated model to path
+    public void save(Path path) throws IOException {
+        if (this.file != null) {
+            throw new IllegalStateException("the model was loaded from a file");
+        }
+        ModelFile.write(this.model, this.geometry, path);
+    }
+
+    @Override
+    public Geometry getGeometry() {
+        return this.geometry;
+    }
+
+    // getModel returns the model so that its size and hit, miss, collision and
+    // eviction counters can be inspected. It is null for an engine that plays from
+    // a file and didn't need to solve a position yet
+    public TranspositionTable getModel() {
+        return this.model;
+    }
+
+    @Override
+    public int chooseCol(Position position, double[] scores) {
+        // An unbounded model always has the key. A bounded model may have evicted
+        // it, in which case we solve the position again
+        long modelKey = position.canonicalKey();
+        boolean found = this.file != null && this.file.get(modelKey, scores);
+        // The model is solved to the end of the game, so every score looks ahead
+        // over all the empty cells
+        this.depth = this.geometry.cells() - position.moves();
+        this.collisions = 0;
+        if (found || (this.model != null && this.model.get(modelKey, scores))) {
+            this.hits = 1;
+            this.misses = 0;
+            if (position.isMirrored()) {
+                Position.mirror(scores);
+            }
+        } else {
+            if (this.model == null) {
+                this.model = new TranspositionTable(this.geometry.cols(), 1 << 10);
+            }
+            // Count the lookups of the solve from the model's counters. Summing them
+            // walks every stripe of a concurrent model, so it is only done here and
+            // not on the lookup above
+            long hits = this.model.hits();
+            long misses = this.model.misses();
+            long collisions = this.model.collisions();
+            generateModel(position, this.model, this.plyScores);
+            this.hits = this.model.hits() - hits;
+            this.misses = this.model.misses() - misses + 1;
+            this.collisions = this.model.collisions() - collisions;
+            System.arraycopy(this.plyScores[position.moves()], 0, scores, 0, this.geometry.cols());
+        }
+        // Choose index with max score
+        double bestScore = -1;
+        int bestScoreIndex = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > bestScore) {
+                bestScore = scores[i];
+                bestScoreIndex = i;
+            }
+        }
+        return bestScoreIndex;
+    }
+
+    // The model is solved to the end of the game, so its scores are always exact
+    @Override
+    public boolean isProven() {
+        return true;
+    }
+
+    // Collisions are only counted for positions that had to be solved
+    @Override
+    public void recordSearch(SearchMetrics metrics, long nanos) {
+        metrics.record(nanos, this.hits + this.misses, this.depth, this.hits, this.misses, this.collisions);
+    }
+
+    // generateModel fills plyScores[ply] with a list of scores that represents the
+    // win/not-lose probability for that move and that player, where ply is the
+    // number of moves played in position
+    private static void generateModel(Position position, TranspositionTable model, double[][] plyScores) {
+        int ply = position.moves();
+        double[] scores = plyScores[ply];
+        long key = position.key();
+        long mirrorKey = position.mirrorKey();
+        // Check if we have the board or its mirror image in the model, if we do
+        // then return
+        if (model.get(Math.min(key, mirrorKey), scores)) {
+            if (mirrorKey < key) {
+                Position.mirror(scores);
+            }
+            return;
+        }
+        // Get our scores table that lists the scores for each possible col. Round
+        // them like the model does, so that the position and its mirror image get
+        // exactly mirrored scores whether they were computed or looked up
+        generateModelScores(position, model, plyScores);
+        TranspositionTable.round(scores);
+
+        // Store the possible scores in the model. The number of empty cells left is
+        // the depth, which bounded models use to keep the most expensive positions
+        putScores(model, key, mirrorKey, position.geometry().cells() - ply, scores);
+    }
+
+    // putScores stores the scores of the position with key under the smaller of
+    // key and mirrorKey, mirroring the scores if needed. scores is left unchanged
+    private static void putScores(TranspositionTable model, long key, long mirrorKey, int depth, double[] scores) {
+        if (key <= mirrorKey) {
+            model.put(key, depth, scores);
+            return;
+        }
+        Position.mirror(scores);
+        model.put(mirrorKey, depth, scores);
+        Position.mirror(scores);
+    }
+
+    // generateModelScores fills plyScores[ply] with a list of scores that
+    // represents the win/not-lose probability for that move and that player
+    private static void generateModelScores(Position position, TranspositionTable model, double[][] plyScores) {
+        int ply = position.moves();
+        // Our scores table that lists the scores for each possible col
+        double[] scores = plyScores[ply];
+        if (scoreFinalMoves(position, scores)) {
+            return;
+        }
+        // Can choose one of the columns to place a token.
+        for (int col = 0; col < scores.length; col++) {
+            // Skip columns that are full
+            if (!position.canPlay(col)) {
+                continue;
+            }
+            // Place token in bottom-most possible row. The position is now seen from
+            // the other player's perspective
+            position.play(col);
+            // Calculate the scores for this move
+            generateModel(position, model, plyScores);
+            // Undo the move
+            position.undo(col);
+            scores[col] = averageReplyScore(plyScores[ply + 1]);
+        }
+    }
+
+    // scoreFinalMoves initializes scores and scores the moves that end the game.
+    // Returns true if that decides all scores, i.e. we can win right away or the
+    // next move fills the board
+    static boolean scoreFinalMoves(Position position, double[] scores) {
+        // Initialize our scores table with -1 indicating there is no score
+        for (int col = 0; col < scores.length; col++) {
+            scores[col] = TranspositionTable.NO_SCORE;
+        }
+        // Check if we can automatically win with any of the columns
+        // Return early if we find any automatic wins
+        if (position.canWinNext()) {
+            for (int col = 0; col < scores.length; col++) {
+                if (position.canPlay(col) && position.isWinningMove(col)) {
+                    scores[col] = 1;
+                    return true;
+                }
+            }
+        }
+        // If the last empty cell doesn't win, playing it ties the game
+        if (position.moves() == position.geometry().cells() - 1) {
+            for (int col = 0; col < scores.length; col++) {
+                if (position.canPlay(col)) {
+                    scores[col] = 0.5;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // averageReplyScore returns the score of a move given the scores of the
+    // opponent's replies
+    static double averageReplyScore(double[] replyScores) {
+        // Get scores for each col
+        double totalScore = 0;
+        double totalMoves = 0;
+        for (int i = 0; i < replyScores.length; i++) {
+            // Do not count the scores that are non-valid
+            if (replyScores[i] == TranspositionTable.NO_SCORE) {
+                continue;
+            }
+            // Take the inverse of the score as it's our opponent who's taking the turn.
+            totalScore += 1 - replyScores[i];
+            totalMoves++;
+        }
+        return totalScore / totalMoves;
+    }
+
+    // splitPly returns the number of plies to split into tasks so that there are
+    // at least TASKS_PER_THREAD subtrees for every thread
+    private static int splitPly(int parallelism, int cols) {
+        int ply = 0;
+        for (long subtrees = 1; subtrees < (long) TASKS_PER_THREAD * parallelism; subtrees *= cols) {
+            ply++;
+        }
+        return ply;
+    }
+
+    // checkGeometry throws if positions of geometry don't have unique keys
+    private static void checkGeometry(Geometry geometry) {
+        if (!geometry.fitsInLong()) {
+            throw new IllegalArgumentException("can't solve board " + geometry + ", its positions don't fit in a long");
+        }
+    }
+
+    // ModelTask generates the model of a subtree. Positions before splitPly fork a
+    // task for every move, positions at splitPly are solved sequentially
+    private static class ModelTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Position position;
+        private final TranspositionTable model;
+        private final int splitPly;
+
+        ModelTask(Position position, TranspositionTable model, int splitPly) {
+            this.position = position;
+            this.model = model;
+            this.splitPly = splitPly;
+        }
+
+        @Override
+        protected double[] compute() {
+            int ply = this.position.moves();
+            Geometry geometry = this.position.geometry();
+            if (ply >= this.splitPly) {
+                // Solve the subtree with the same recursion as the sequential model
+                double[][] plyScores = new double[geometry.cells() + 1][geometry.cols()];
+                generateModel(this.position, this.model, plyScores);
+                return plyScores[ply];
+            }
+            double[] scores = new double[geometry.cols()];
+            if (this.model.get(this.position.canonicalKey(), scores)) {
+                if (this.position.isMirrored()) {
+                    Position.mirror(scores);
+                }
+                return scores;
+            }
+            if (scoreFinalMoves(this.position, scores)) {
+                return scores;
+            }
+            ModelTask[] tasks = new ModelTask[geometry.cols()];
+            for (int col = 0; col < geometry.cols(); col++) {
+                if (this.position.canPlay(col)) {
+                    Position child = this.position.copy();
+                    child.play(col);
+                    tasks[col] = new ModelTask(child, this.model, this.splitPly);
+                    tasks[col].fork();
+                }
+            }
+            // Join in the reverse order of forking, which lets this thread run the
+            // tasks it forked itself before any other thread steals them
+            for (int col = geometry.cols() - 1; col >= 0; col--) {
+                if (tasks[col] != null) {
+                    scores[col] = averageReplyScore(tasks[col].join());
+                }
+            }
+            TranspositionTable.round(scores);
+            putScores(this.model, this.position.key(), this.position.mirrorKey(), geometry.cells() - ply, scores);
+            return scores;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// BatchEvaluator scores many positions at once, e.g. every position of a log of
+// recorded games. Positions are passed in encoded, either as move strings ("4453",
+// see PositionCodec) or as position keys (see LongPosition.setKey). The
+// scores of the i-th position are written to [i * cols, (i + 1) * cols) of a
+// buffer the caller owns and the chosen column to cols[i], so a long log can be
+// streamed through the same few arrays.
+//
+// Positions are scored on a fixed pool of workers. Every worker owns an engine,
+// a position it reuses for all of its inputs and a scores buffer, and claims
+// blocks of positions from a shared counter, so workers that draw cheap positions
+// take more blocks. Nothing is allocated per position and nothing is printed.
+//
+// Inputs that aren't a position where a move can be made, i.e. a malformed move
+// string, a move into a full column, a game that is already over or a full board,
+// get -1 as their column and NO_SCORE for every column.
+public class BatchEvaluator implements AutoCloseable {
+    // Number of positions a worker claims at a time
+    private static final int BLOCK_SIZE = 64;
+    // Number of lines main reads before scoring them
+    private static final int LINES_PER_BATCH = 4096;
+
+    // Input decodes the i-th input into position, which is empty, and returns
+    // whether it is a valid position
+    private interface Input {
+        boolean decode(Position position, int i);
+    }
+
+    private final Geometry geometry;
+    private final ExecutorService pool;
+    private final Worker[] workers;
+
+    // Creates an evaluator with parallelism workers. engines is called once for
+    // every worker, since engines keep search state and can't be shared between
+    // threads
+    public BatchEvaluator(Supplier<? extends SearchEngine> engines, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.workers = new Worker[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            this.workers[i] = new Worker(engines.get());
+        }
+        this.geometry = this.workers[0].engine.getGeometry();
+        for (Worker worker : this.workers) {
+            if (!worker.engine.getGeometry().equals(this.geometry)) {
+                throw new IllegalArgumentException("engines play on different boards");
+            }
+        }
+        this.pool = Executors.newFixedThreadPool(parallelism);
+    }
+
+    public Geometry getGeometry() {
+        return this.geometry;
+    }
+
+    // evaluate scores the first count move strings of moves. moves may hold
+    // CharSequences that are reused between batches, e.g. StringBuilders
+    public void evaluate(CharSequence[] moves, int count, double[] scores, int[] cols)
+            throws InterruptedException {
+        evaluate(count, scores, cols, (position, i) -> PositionCodec.playMoves(position, moves[i]));
+    }
+
+    // evaluate scores the positions of the first count keys of keys. Only boards
+    // whose positions fit in a long have unique keys
+    public void evaluate(long[] keys, int count, double[] scores, int[] cols) throws InterruptedException {
+        if (!this.geometry.fitsInLong()) {
+            throw new IllegalArgumentException("positions of board " + this.geometry + " have no unique key");
+        }
+        evaluate(count, scores, cols, (position, i) -> {
+            LongPosition longPosition = (LongPosition) position;
+            // Reject keys of games that the last move already won
+            return longPosition.setKey(keys[i])
+                    && !longPosition.alignment(longPosition.current() ^ longPosition.mask());
+        });
+    }
+
+    private void evaluate(int count, double[] scores, int[] cols, Input input) throws InterruptedException {
+        if (scores.length < (long) count * this.geometry.cols() || (cols != null && cols.length < count)) {
+            throw new IllegalArgumentException("output buffers are too small for " + count + " positions");
+        }
+        AtomicInteger next = new AtomicInteger();
+        Future<?>[] futures = new Future<?>[this.workers.length];
+        for (int i = 0; i < this.workers.length; i++) {
+            Worker worker = this.workers[i];
+            futures[i] = this.pool.submit(() -> worker.run(input, count, next, scores, cols));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.pool.shutdown();
+    }
+
+    // Worker scores the positions it claims with its own engine
+    private class Worker {
+        private final SearchEngine engine;
+        // position is reset and decoded again for every input
+        private final Position position;
+        private final double[] scores;
+
+        Worker(SearchEngine engine) {
+            this.engine = engine;
+            this.position = engine.getGeometry().newPosition();
+            this.scores = new double[engine.getGeometry().cols()];
+        }
+
+        void run(Input input, int count, AtomicInteger next, double[] scores, int[] cols) {
+            int width = this.scores.length;
+            int cells = this.position.geometry().cells();
+            int start;
+            while ((start = next.getAndAdd(BLOCK_SIZE)) < count) {
+                int end = Math.min(start + BLOCK_SIZE, count);
+                for (int i = start; i < end; i++) {
+                    this.position.reset();
+                    int col = -1;
+                    if (input.decode(this.position, i) && this.position.moves() < cells) {
+                        col = this.engine.chooseCol(this.position, this.scores);
+                        System.arraycopy(this.scores, 0, scores, i * width, width);
+                    } else {
+                        for (int j = 0; j < width; j++) {
+                            scores[i * width + j] = TranspositionTable.NO_SCORE;
+                        }
+                    }
+                    if (cols != null) {
+                        cols[i] = col;
+                    }
+                }
+            }
+        }
+    }
+
+    // main scores the move strings read from standard input, one per line, with a
+    // NegamaxEngine per core and prints the line, the chosen column as a move
+    // character, or 0 for invalid positions, and the scores
+    // Usage: java BatchEvaluator [search depth [rows cols [win]]] < positions.txt
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : NegamaxEngine.DEFAULT_MAX_DEPTH;
+        Geometry geometry = args.length > 2
+                ? new Geometry(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                        args.length > 3 ? Integer.parseInt(args[3]) : Geometry.DEFAULT.winCondition())
+                : Geometry.DEFAULT;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        String[] lines = new String[LINES_PER_BATCH];
+        double[] scores = new double[LINES_PER_BATCH * geometry.cols()];
+        int[] cols = new int[LINES_PER_BATCH];
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        try (BatchEvaluator evaluator = new BatchEvaluator(() -> new NegamaxEngine(geometry, depth), parallelism)) {
+            while (true) {
+                int count = 0;
+                String line;
+                while (count < LINES_PER_BATCH && (line = in.readLine()) != null) {
+                    lines[count++] = line.trim();
+                }
+                if (count == 0) {
+                    break;
+                }
+                evaluator.evaluate(lines, count, scores, cols);
+                StringBuilder out = new StringBuilder();
+                for (int i = 0; i < count; i++) {
+                    out.append(lines[i]).append(' ').append(cols[i] == -1 ? '0' : PositionCodec.symbol(cols[i]));
+                    for (int col = 0; col < geometry.cols(); col++) {
+                        out.append(col == 0 ? ' ' : ',').append(String.format("%.2f", scores[i * geometry.cols() + col]));
+                    }
+                    out.append('\n');
+                }
+                System.out.print(out);
+            }
+        }
+    }
+}
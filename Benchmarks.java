@@ -0,0 +1,394 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+// Benchmarks measures the hot paths of the game and the AI: model generation,
+// win detection, position keys and choosing a column from a set of standard
+// positions, so that a regression in time or allocation shows up before a new AI
+// build is rolled out.
+//
+// Measurements follow the rules of JMH without needing its build:
+// - Every benchmark runs in a JVM of its own (a fork), so the profile the JIT
+// gathered for one benchmark doesn't slow down or speed up the next one.
+// - Warmup iterations run first and are thrown away, only the measured
+// iterations that follow are reported.
+// - Every operation's result is added up and stored to a volatile field, so the
+// JIT can't remove the work.
+// - Besides the time per operation and its error across iterations, every
+// benchmark reports the bytes allocated per operation and per second and the
+// garbage collections during the measurement, like the GC profiler of JMH.
+// Allocations are counted on every thread, so the bytes that the workers of
+// BatchEvaluator allocate count too.
+//
+// Usage: java Benchmarks [-in-process] [name filter] [rows cols [win]]
+// where -in-process runs every benchmark in this JVM, which is quicker but lets
+// the benchmarks influence each other
+public class Benchmarks {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    // Target duration of a single iteration
+    private static final long ITERATION_NANOS = 200_000_000L;
+    // Standard positions as the columns played, starting from 1. Positions that
+    // aren't playable on the current board are skipped
+    private static final String[] STANDARD_POSITIONS = {
+            "",
+            "3",
+            "33",
+            "3324",
+            "332415",
+            "13524",
+            "1122334",
+            "2443153",
+    };
+
+    // Number of positions passed to BatchEvaluator at a time
+    private static final int BATCH_SIZE = 1024;
+    // Names of all benchmarks, in the order they run. Benchmarks that don't apply
+    // to the board print nothing
+    private static final String[] NAMES = {
+            "Board.getGameState",
+            "Position.canWinNext",
+            "LongPosition.alignment",
+            "Board.turn",
+            "Position.key",
+            "Position.canonicalKey",
+            "WindowEvaluator.evaluate",
+            "NegamaxEngine.chooseCol",
+            "BatchEvaluator.evaluate",
+            "AveragingModelEngine.generate",
+            "AveragingModelEngine.chooseCol",
+    };
+    // Argument that makes a fork run the one benchmark named after it
+    private static final String FORK = "-fork";
+    private static final String IN_PROCESS = "-in-process";
+
+    // Benchmark runs ops operations and returns a value depending on all of them,
+    // so that the JIT can't remove the work
+    private interface Benchmark {
+        long run(int ops);
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+
+    // Sink for benchmark results. Every store to a volatile field happens, so the
+    // JIT can't remove the benchmark loops that compute them
+    private static volatile long blackhole;
+
+    public static void main(String[] args) throws Exception {
+        boolean fork = args.length > 0 && args[0].equals(FORK);
+        boolean inProcess = args.length > 0 && args[0].equals(IN_PROCESS);
+        int first = fork || inProcess ? 1 : 0;
+        String filter = args.length > first ? args[first] : "";
+        Geometry geometry = args.length > first + 2
+                ? new Geometry(Integer.parseInt(args[first + 1]), Integer.parseInt(args[first + 2]),
+                        args.length > first + 3 ? Integer.parseInt(args[first + 3]) : Geometry.DEFAULT.winCondition())
+                : Geometry.DEFAULT;
+        if (fork) {
+            run(name -> name.equals(filter), geometry);
+            return;
+        }
+        System.out.println(String.format("Board %s, %d standard positions", geometry,
+                standardPositions(geometry).size()));
+        System.out.println(String.format("%-32s %14s %12s %12s %10s %8s %8s", "Benchmark", "ns/op", "error",
+                "B/op", "MB/s", "GCs", "GC ms"));
+        if (inProcess) {
+            run(name -> name.contains(filter), geometry);
+            return;
+        }
+        for (String name : NAMES) {
+            if (name.contains(filter)) {
+                fork(name, args, first);
+            }
+        }
+    }
+
+    // fork runs the benchmark name in a new JVM with the same options and class
+    // path as this one, which prints its result
+    private static void fork(String name, String[] args, int first) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Benchmarks.class.getName());
+        command.add(FORK);
+        command.add(name);
+        for (int i = first + 1; i < args.length; i++) {
+            command.add(args[i]);
+        }
+        int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (status != 0) {
+            throw new IllegalStateException("benchmark " + name + " failed with exit status " + status);
+        }
+    }
+
+    // run runs the benchmarks on geometry that filter selects
+    private static void run(Predicate<String> filter, Geometry geometry) throws Exception {
+        List<Position> positions = standardPositions(geometry);
+
+        // Win detection on the bitboard position against the Token[][] board
+        Board.Token[][][] grids = new Board.Token[positions.size()][][];
+        for (int i = 0; i < grids.length; i++) {
+            grids[i] = toGrid(positions.get(i));
+        }
+        run(filter, "Board.getGameState", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += Board.getGameState(grids[i % grids.length], geometry.winCondition()).ordinal();
+            }
+            return sum;
+        });
+        run(filter, "Position.canWinNext", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += positions.get(i % positions.size()).canWinNext() ? 1 : 0;
+            }
+            return sum;
+        });
+        if (geometry.fitsInLong()) {
+            run(filter, "LongPosition.alignment", ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    LongPosition position = (LongPosition) positions.get(i % positions.size());
+                    sum += position.alignment(position.current() ^ position.mask()) ? 1 : 0;
+                }
+                return sum;
+            });
+        }
+        run(filter, "Board.turn", ops -> {
+            long sum = 0;
+            Board game = new Board(geometry);
+            for (int i = 0; i < ops; i++) {
+                // Cycling through the columns fills them evenly, so no move is invalid
+                try {
+                    if (game.turn(i % geometry.cols()) != Board.State.LIVE) {
+                        game = new Board(geometry);
+                    }
+                } catch (Exception e) {
+                    game = new Board(geometry);
+                }
+                sum += game.getToken(0, 0).ordinal();
+            }
+            return sum;
+        });
+
+        // Position keys
+        run(filter, "Position.key", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += positions.get(i % positions.size()).key();
+            }
+            return sum;
+        });
+        run(filter, "Position.canonicalKey", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += positions.get(i % positions.size()).canonicalKey();
+            }
+            return sum;
+        });
+
+        // Evaluating the positions at the depth limit of a search
+        WindowEvaluator windowEvaluator = new WindowEvaluator(geometry);
+        run(filter, "WindowEvaluator.evaluate", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += windowEvaluator.evaluate(positions.get(i % positions.size()));
+            }
+            return sum;
+        });
+
+        // Choosing a column from the standard positions
+        double[] scores = new double[geometry.cols()];
+        if (filter.test("NegamaxEngine.chooseCol")) {
+            NegamaxEngine negamax = new NegamaxEngine(geometry);
+            run(filter, "NegamaxEngine.chooseCol", ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    sum += negamax.chooseCol(positions.get(i % positions.size()), scores);
+                }
+                return sum;
+            });
+        }
+        if (filter.test("BatchEvaluator.evaluate")) {
+            // Scores the standard positions as move strings on every core, ops is the
+            // number of positions
+            String[] moves = new String[BATCH_SIZE];
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                moves[i] = STANDARD_POSITIONS[i % STANDARD_POSITIONS.length];
+            }
+            double[] batchScores = new double[BATCH_SIZE * geometry.cols()];
+            int[] cols = new int[BATCH_SIZE];
+            try (BatchEvaluator evaluator = new BatchEvaluator(() -> new NegamaxEngine(geometry),
+                    Runtime.getRuntime().availableProcessors())) {
+                run(filter, "BatchEvaluator.evaluate", ops -> {
+                    long sum = 0;
+                    for (int done = 0; done < ops; done += BATCH_SIZE) {
+                        try {
+                            evaluator.evaluate(moves, Math.min(BATCH_SIZE, ops - done), batchScores, cols);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        sum += cols[0];
+                    }
+                    return sum;
+                });
+            }
+        }
+        if ((filter.test("AveragingModelEngine.generate") || filter.test("AveragingModelEngine.chooseCol"))
+                && geometry.fitsInLong()) {
+            // Generating the model solves the whole board, so every operation takes
+            // seconds and only a few of them are measured
+            run(filter, "AveragingModelEngine.generate", ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    sum += new AveragingModelEngine(geometry).getModel().size();
+                }
+                return sum;
+            });
+            AveragingModelEngine model = new AveragingModelEngine(geometry);
+            run(filter, "AveragingModelEngine.chooseCol", ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    sum += model.chooseCol(positions.get(i % positions.size()), scores);
+                }
+                return sum;
+            });
+        }
+    }
+
+    // run measures benchmark if filter selects its name
+    private static void run(Predicate<String> filter, String name, Benchmark benchmark) {
+        if (!filter.test(name)) {
+            return;
+        }
+        // Find the number of operations that fills an iteration
+        int ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            blackhole += benchmark.run(ops);
+            if (System.nanoTime() - start > ITERATION_NANOS / 10 || ops >= 1 << 30) {
+                ops = (int) Math.max(1, Math.min(1L << 30, ops * ITERATION_NANOS / (System.nanoTime() - start)));
+                break;
+            }
+            ops *= 2;
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            blackhole += benchmark.run(ops);
+        }
+        // Nanoseconds per operation of every measured iteration
+        double[] iterations = new double[MEASURED_ITERATIONS];
+        long nanos = 0;
+        long bytes = 0;
+        long startCollections = collections();
+        long startCollectionMillis = collectionMillis();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long[] threads = THREADS.getAllThreadIds();
+            long[] startBytes = THREADS.getThreadAllocatedBytes(threads);
+            long start = System.nanoTime();
+            blackhole += benchmark.run(ops);
+            long iterationNanos = System.nanoTime() - start;
+            bytes += allocatedSince(threads, startBytes);
+            nanos += iterationNanos;
+            iterations[i] = (double) iterationNanos / ops;
+        }
+        long totalOps = (long) ops * MEASURED_ITERATIONS;
+        double mean = (double) nanos / totalOps;
+        double variance = 0;
+        for (double iteration : iterations) {
+            variance += (iteration - mean) * (iteration - mean);
+        }
+        // The error is the standard deviation of the iterations
+        double error = Math.sqrt(variance / (MEASURED_ITERATIONS - 1));
+        System.out.println(String.format("%-32s %14.1f %12.1f %12.1f %10.1f %8d %8d", name, mean, error,
+                (double) bytes / totalOps, bytes / 1e6 / (nanos / 1e9), collections() - startCollections,
+                collectionMillis() - startCollectionMillis));
+    }
+
+    // allocatedSince returns the bytes every live thread allocated since the threads
+    // had allocated startBytes. Threads started since then count from 0. The bytes
+    // of threads that ended in between are lost, which is why BatchEvaluator keeps
+    // its workers for the whole benchmark
+    private static long allocatedSince(long[] threads, long[] startBytes) {
+        long[] ids = THREADS.getAllThreadIds();
+        long[] bytes = THREADS.getThreadAllocatedBytes(ids);
+        long allocated = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] < 0) {
+                continue;
+            }
+            long before = 0;
+            for (int j = 0; j < threads.length; j++) {
+                if (threads[j] == ids[i]) {
+                    before = Math.max(0, startBytes[j]);
+                    break;
+                }
+            }
+            allocated += bytes[i] - before;
+        }
+        return allocated;
+    }
+
+    // collections returns the number of garbage collections so far
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    // collectionMillis returns the time spent in garbage collections so far
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // standardPositions plays the standard positions that fit the board
+    private static List<Position> standardPositions(Geometry geometry) {
+        List<Position> positions = new ArrayList<Position>();
+        for (String moves : STANDARD_POSITIONS) {
+            Position position = geometry.newPosition();
+            boolean playable = true;
+            for (char move : moves.toCharArray()) {
+                int col = move - '1';
+                if (col >= geometry.cols() || !position.canPlay(col) || position.isWinningMove(col)) {
+                    playable = false;
+                    break;
+                }
+                position.play(col);
+            }
+            if (playable && position.moves() < geometry.cells()) {
+                positions.add(position);
+            }
+        }
+        return positions;
+    }
+
+    // toGrid builds the Token[][] board of position, player 1 being the player who
+    // moved first
+    private static Board.Token[][] toGrid(Position position) {
+        boolean playerOneToMove = position.moves() % 2 == 0;
+        Geometry geometry = position.geometry();
+        Board.Token[][] grid = new Board.Token[geometry.rows()][geometry.cols()];
+        for (int row = 0; row < geometry.rows(); row++) {
+            for (int col = 0; col < geometry.cols(); col++) {
+                if (!position.isOccupied(row, col)) {
+                    grid[row][col] = Board.Token.EMPTY;
+                } else {
+                    boolean playerOne = position.isCurrent(row, col) == playerOneToMove;
+                    grid[row][col] = playerOne ? Board.Token.PLAYER_1 : Board.Token.PLAYER_2;
+                }
+            }
+        }
+        return grid;
+    }
+}
@@ -1,7 +1,4 @@
 public class Board {
-    public static final int ROWS = 4;
-    public static final int COLS = 5;
-    public static final int WIN_CONDITION = 4;
 
     public enum State {
         LIVE,
@@ -27,65 +24,86 @@ public class Board {
         }
     }
 
-    // board is the connect4 board
-    private Token[][] board;
+    // Size of the board and the number of tokens in a row needed to win
+    private Geometry geometry;
+    // position is the connect4 board as bitboards. The Token[][] view of the board
+    // is derived from it when needed
+    private Position position;
     // Current player's turn. We can just use boolean to represent player 1 or 2.
     private Boolean turn;
+    // State of the game after the last move
+    private State state;
 
-    // Constructor
+    // Creates a board of the default size
     public Board() {
-        // Initialize connect4 board
-        this.board = new Token[ROWS][COLS];
+        this(Geometry.DEFAULT);
+    }
 
-        // Initialize board with empty spaces for presentation purposes
-        for (int i = 0; i < this.board.length; i++) {
-            for (int j = 0; j < this.board[i].length; j++) {
-                this.board[i][j] = Token.EMPTY;
-            }
-        }
+    // Constructor
+    public Board(Geometry geometry) {
+        // Initialize connect4 board
+        this.geometry = geometry;
+        this.position = geometry.newPosition();
 
         // Initialize the turn
         this.turn = false;
+        this.state = State.LIVE;
+    }
+
+    public Geometry getGeometry() {
+        return this.geometry;
     }
 
     public Token[][] cloneBoard() {
-        Token[][] clone = new Token[ROWS][COLS];
+        Token[][] clone = new Token[this.geometry.rows()][this.geometry.cols()];
         for (int i = 0; i < clone.length; i++) {
             for (int j = 0; j < clone[i].length; j++) {
-                clone[i][j] = this.board[i][j];
+                clone[i][j] = getToken(i, j);
             }
         }
         return clone;
     }
 
+    // getToken returns the token at row and col, row 0 being the bottom row
+    public Token getToken(int row, int col) {
+        if (!this.position.isOccupied(row, col)) {
+            return Token.EMPTY;
+        }
+        // The position holds the tokens of the player to move
+        boolean playerOne = this.position.isCurrent(row, col) != this.turn;
+        return playerOne ? Token.PLAYER_1 : Token.PLAYER_2;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
     public State turn(int col) throws Exception {
         // Check if the game is still live
-        if (getGameState(this.board) != State.LIVE) {
+        if (this.state != State.LIVE) {
             throw new Exception("Game is over");
         }
         // Check if can place token on the column by checking if first row has item
-        if (this.board[ROWS - 1][col] != Token.EMPTY) {
+        if (col < 0 || col >= this.geometry.cols() || !this.position.canPlay(col)) {
             throw new Exception("Invalid move");
         }
+        // Only lines through the token we place can be completed by this move
+        boolean won = this.position.isWinningMove(col);
         // Place token at the bottom most row without token
-        int row = ROWS - 1;
-        while (row >= 0 && this.board[row][col] == Token.EMPTY) {
-            row -= 1;
-        }
-        row += 1;
-        if (this.turn) {
-            this.board[row][col] = Token.PLAYER_2;
-        } else {
-            this.board[row][col] = Token.PLAYER_1;
+        this.position.play(col);
+        if (won) {
+            this.state = this.turn ? State.PLAYER_2_WON : State.PLAYER_1_WON;
+        } else if (this.position.moves() == this.geometry.cells()) {
+            this.state = State.TIED;
         }
         // Flip the turn
         this.turn = !this.turn;
         // Return the game state
-        return getGameState(this.board);
+        return this.state;
     }
 
-    public static State getGameState(Token[][] board) {
-        int[][][] visited = new int[ROWS][COLS][4];
+    public static State getGameState(Token[][] board, int winCondition) {
+        int[][][] visited = new int[board.length][board[0].length][4];
         for (int i = 0; i < visited.length; i++) {
             for (int j = 0; j < visited[i].length; j++) {
                 visited[i][j] = new int[] { 0, 0, 0, 0 };
@@ -101,7 +119,7 @@ public class Board {
                     hasEmpty = true;
                     continue;
                 }
-                if (dfs(board, i, j, visited, directions)) {
+                if (dfs(board, i, j, visited, directions, winCondition)) {
                     // Check if player 1 or player 2
                     if (board[i][j] == Token.PLAYER_1) {
                         return State.PLAYER_1_WON;
@@ -121,22 +139,23 @@ public class Board {
     // Direction can be between -1 to 3 where 1 is no direction and 0 to 3 are the
     // cardinal directions N, NE, E, SE
     // Returns whether a player has won or not
-    private static Boolean dfs(Token[][] board, int x, int y, int[][][] visited, int[][] directions) {
+    private static Boolean dfs(Token[][] board, int x, int y, int[][][] visited, int[][] directions,
+            int winCondition) {
         for (int d = 0; d < directions.length; d++) {
             int[] direction = directions[d];
             int newX = x + direction[0];
             int newY = y + direction[1];
-            if (0 <= newX && newX < ROWS && 0 <= newY && newY < COLS) {
+            if (0 <= newX && newX < board.length && 0 <= newY && newY < board[newX].length) {
                 // Check if new space is same as current space
                 if (board[x][y] == board[newX][newY]) {
                     // Check if new space is already visited
                     if (visited[newX][newY][d] == 0) {
                         // dfs will populate the space with a value
-                        dfs(board, newX, newY, visited, directions);
+                        dfs(board, newX, newY, visited, directions, winCondition);
                     }
                     visited[x][y][d] = visited[newX][newY][d] + 1;
-                    // Win condition if we have a streak of 4 or more
-                    if (visited[x][y][d] >= WIN_CONDITION) {
+                    // Win condition if we have a long enough streak
+                    if (visited[x][y][d] >= winCondition) {
                         return true;
                     }
                 }
@@ -152,20 +171,22 @@ public class Board {
     // Override toString() method
     @Override
     public String toString() {
-        String[] result = new String[ROWS + 1];
-        for (int row = ROWS - 1; row >= 0; row--) {
-            String[] rowString = new String[COLS];
-            for (int col = 0; col < COLS; col++) {
-                rowString[col] = String.format(" %s ", this.board[row][col].toString());
+        int rows = this.geometry.rows();
+        int cols = this.geometry.cols();
+        String[] result = new String[rows + 1];
+        for (int row = rows - 1; row >= 0; row--) {
+            String[] rowString = new String[cols];
+            for (int col = 0; col < cols; col++) {
+                rowString[col] = String.format(" %s ", getToken(row, col).toString());
             }
-            result[ROWS - 1 - row] = "|" + String.join("|", rowString) + "|";
+            result[rows - 1 - row] = "|" + String.join("|", rowString) + "|";
         }
         // Add index footer column
-        String[] footer = new String[COLS];
-        for (int col = 0; col < COLS; col++) {
+        String[] footer = new String[cols];
+        for (int col = 0; col < cols; col++) {
             footer[col] = String.format(" %d ", col + 1);
         }
-        result[ROWS] = " " + String.join(" ", footer) + " ";
+        result[rows] = " " + String.join(" ", footer) + " ";
         return String.join("\n", result);
     }
 }
@@ -0,0 +1,234 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// CachingEngine remembers the moves another engine chose, so that a position that
+// was searched before, which most early and middle game positions of a busy
+// server are, is answered from memory in microseconds instead of searched again.
+// It is meant for engines that search, a NegamaxEngine in particular, since a
+// solved model already is a lookup.
+//
+// The results are kept in a Cache, which can be shared by the engines of many
+// threads and games. Entries are keyed by the canonical position key, so a
+// position and its mirror image share an entry, and hold the chosen column, the
+// scores and whether they are proven. A cached result is replayed as is, so a
+// position first searched within a short time budget keeps its shallow result
+// until it is evicted.
+public class CachingEngine implements SearchEngine {
+    // Engine for the positions that aren't in the cache
+    private final SearchEngine engine;
+    private final Cache cache;
+    // The last call to chooseCol was answered by the cache if hit is not null
+    private Cache.Entry hit;
+
+    // Creates an engine that caches the results of engine in cache, which may be
+    // shared with other CachingEngines of the same board
+    public CachingEngine(SearchEngine engine, Cache cache) {
+        if (engine.getGeometry().cols() != cache.width) {
+            throw new IllegalArgumentException("cache width " + cache.width + " doesn't match board "
+                    + engine.getGeometry());
+        }
+        this.engine = engine;
+        this.cache = cache;
+    }
+
+    public Cache getCache() {
+        return this.cache;
+    }
+
+    @Override
+    public Geometry getGeometry() {
+        return this.engine.getGeometry();
+    }
+
+    @Override
+    public int chooseCol(Position position, double[] scores) {
+        long key = position.canonicalKey();
+        boolean mirrored = position.isMirrored();
+        this.hit = this.cache.get(key);
+        if (this.hit != null) {
+            System.arraycopy(this.hit.scores, 0, scores, 0, scores.length);
+            if (mirrored) {
+                Position.mirror(scores);
+                return scores.length - 1 - this.hit.col;
+            }
+            return this.hit.col;
+        }
+        int col = this.engine.chooseCol(position, scores);
+        // Store the result in the column order of the canonical position
+        double[] stored = scores.clone();
+        if (mirrored) {
+            Position.mirror(stored);
+        }
+        this.cache.put(key, new Cache.Entry(mirrored ? scores.length - 1 - col : col, stored,
+                this.engine.isProven()));
+        return col;
+    }
+
+    @Override
+    public boolean isProven() {
+        return this.hit != null ? this.hit.proven : this.engine.isProven();
+    }
+
+    // Cache hits are recorded like opening book hits, as one node found in a table
+    @Override
+    public void recordSearch(SearchMetrics metrics, long nanos) {
+        if (this.hit != null) {
+            metrics.record(nanos, 1, 0, 1, 0, 0);
+        } else {
+            this.engine.recordSearch(metrics, nanos);
+        }
+    }
+
+    // Cache is a bounded, concurrent cache of search results that evicts the least
+    // recently used entry when it is full. Entries are split into segments that
+    // each have their own lock and least recently used order, like the stripes of
+    // a concurrent TranspositionTable, so threads only contend when they touch keys
+    // of the same segment, and the entry evicted is the least recently used one of
+    // its segment.
+    //
+    // Positions that don't fit in a long have hashed keys, see WidePosition, so
+    // two of them may share an entry, as rarely as they share a table slot.
+    public static class Cache {
+        // Default number of entries, about 10 MB for a 7 column board
+        public static final int DEFAULT_CAPACITY = 1 << 16;
+        // Number of segments. Must be a power of two
+        private static final int SEGMENTS = 64;
+
+        private final int width;
+        private final int capacity;
+        private final Segment[] segments = new Segment[SEGMENTS];
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        // Creates a cache of results for boards with width columns that holds at
+        // most capacity entries
+        public Cache(int width, int capacity) {
+            if (capacity < SEGMENTS) {
+                throw new IllegalArgumentException("capacity must be at least " + SEGMENTS);
+            }
+            this.width = width;
+            this.capacity = capacity;
+            for (int i = 0; i < SEGMENTS; i++) {
+                // Spread the remainder over the first segments
+                this.segments[i] = new Segment(capacity / SEGMENTS + (i < capacity % SEGMENTS ? 1 : 0));
+            }
+        }
+
+        public int width() {
+            return this.width;
+        }
+
+        public int capacity() {
+            return this.capacity;
+        }
+
+        public long size() {
+            long size = 0;
+            for (Segment segment : this.segments) {
+                synchronized (segment) {
+                    size += segment.size();
+                }
+            }
+            return size;
+        }
+
+        public long hits() {
+            return this.hits.sum();
+        }
+
+        public long misses() {
+            return this.misses.sum();
+        }
+
+        public long evictions() {
+            return this.evictions.sum();
+        }
+
+        // hitRate returns the fraction of lookups that found their position
+        public double hitRate() {
+            long hits = this.hits.sum();
+            long lookups = hits + this.misses.sum();
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        // clear removes every entry, e.g. after the engine changed. The counters are
+        // kept
+        public void clear() {
+            for (Segment segment : this.segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions", size(),
+                    this.capacity, hits(), misses(), 100 * hitRate(), evictions());
+        }
+
+        // get returns the entry of the canonical key, or null if there is none
+        private Entry get(long key) {
+            Segment segment = segment(key);
+            Entry entry;
+            synchronized (segment) {
+                entry = segment.get(key);
+            }
+            if (entry == null) {
+                this.misses.increment();
+            } else {
+                this.hits.increment();
+            }
+            return entry;
+        }
+
+        private void put(long key, Entry entry) {
+            Segment segment = segment(key);
+            synchronized (segment) {
+                segment.put(key, entry);
+            }
+        }
+
+        private Segment segment(long key) {
+            return this.segments[(int) TranspositionTable.mix(key) & (SEGMENTS - 1)];
+        }
+
+        // Entry is one cached result. Entries never change, so they are read
+        // outside the lock of their segment
+        private static final class Entry {
+            private final int col;
+            private final double[] scores;
+            private final boolean proven;
+
+            Entry(int col, double[] scores, boolean proven) {
+                this.col = col;
+                this.scores = scores;
+                this.proven = proven;
+            }
+        }
+
+        // Segment is a LinkedHashMap in access order, which moves an entry to the
+        // end on every get and so evicts from the front
+        private final class Segment extends LinkedHashMap<Long, Entry> {
+            private static final long serialVersionUID = 1L;
+
+            private final int capacity;
+
+            Segment(int capacity) {
+                super(16, 0.75f, true);
+                this.capacity = capacity;
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() <= this.capacity) {
+                    return false;
+                }
+                Cache.this.evictions.increment();
+                return true;
+            }
+        }
+    }
+}
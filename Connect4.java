@@ -1,6 +1,12 @@
 import java.util.Scanner;
 
 public class Connect4 {
+    // Boards with more cells than this are played with a NegamaxEngine, because
+    // solving the averaging model for them takes too long
+    private static final int MAX_MODEL_CELLS = 20;
+    // Time the NegamaxEngine may think about a move
+    private static final long MOVE_TIME_NANOS = 1_000_000_000L;
+
     private enum GameMode {
         PVP,
         AI_PLAYER_1,
@@ -27,14 +33,30 @@ public class Connect4 {
         }
     }
 
-    private static void gameLoop(Scanner scanner, GameMode gameMode) {
+    // loadEngine returns an engine that plays from the shared AI model of geometry,
+    // which is solved and saved by the first game that needs it. The GameServer
+    // plays with the same engines
+    static SearchEngine loadEngine(Geometry geometry) {
+        if (geometry.cells() > MAX_MODEL_CELLS || !geometry.fitsInLong()) {
+            // Search as deep as the time allows
+            NegamaxEngine engine = new NegamaxEngine(geometry, geometry.cells());
+            engine.setTimeBudget(MOVE_TIME_NANOS);
+            return engine;
+        }
+        return ModelRegistry.engine(geometry);
+    }
+
+    private static void gameLoop(Scanner scanner, GameMode gameMode, Geometry geometry) {
         // Create the board
-        Board board = new Board();
+        Board board = new Board(geometry);
         // Create AI. Instantiate it regardless of whether we actually have AI
         // so that we can avoid compile errors
         AI ai = null;
         if (gameMode != GameMode.PVP) {
-            ai = new AI(gameMode == GameMode.AI_PLAYER_1);
+            System.out.println("Loading AI model...");
+            long start = System.nanoTime();
+            ai = new AI(gameMode == GameMode.AI_PLAYER_1, loadEngine(geometry));
+            System.out.println(String.format("Loaded in %.1fs", (System.nanoTime() - start) / 1e9));
         }
         // Create a boolean to track the turn
         Boolean turn = false;
@@ -46,25 +68,24 @@ public class Connect4 {
             // Check if AI is choosing the column
             if (gameMode != GameMode.PVP && ((!turn && gameMode == GameMode.AI_PLAYER_1) ||
                     (turn && gameMode == GameMode.AI_PLAYER_2))) {
-                col = ai.chooseCol(board.cloneBoard());
+                col = ai.chooseCol();
                 System.out.println(String.format(">> AI chose column: %d", col + 1));
             } else {
                 String[] optionTexts = {
                         "Enter column to place token:",
                 };
-                String[] optionInputs = {
-                        "1",
-                        "2",
-                        "3",
-                        "4",
-                        "5",
-                        "6",
-                        "7"
-                };
+                String[] optionInputs = new String[geometry.cols()];
+                for (int i = 0; i < optionInputs.length; i++) {
+                    optionInputs[i] = Integer.toString(i + 1);
+                }
                 col = getUserOption(scanner, optionTexts, optionInputs);
             }
             try {
                 Board.State state = board.turn(col);
+                // Keep the AI's copy of the board in sync
+                if (ai != null) {
+                    ai.onMove(col);
+                }
                 if (state != Board.State.LIVE) {
                     System.out.println(board.toString());
                     switch (state) {
@@ -89,7 +110,13 @@ public class Connect4 {
         }
     }
 
+    // Usage: java Connect4 [rows cols [win]]
     public static void main(String[] args) {
+        Geometry geometry = Geometry.DEFAULT;
+        if (args.length >= 2) {
+            geometry = new Geometry(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                    args.length > 2 ? Integer.parseInt(args[2]) : Geometry.DEFAULT.winCondition());
+        }
         Scanner scanner = new Scanner(System.in);
 
         System.out.println("Welcome to Connect4!");
@@ -109,7 +136,7 @@ public class Connect4 {
             input = getUserOption(scanner, optionTexts, optionInputs);
             switch (input) {
                 case 0:
-                    gameLoop(scanner, GameMode.PVP);
+                    gameLoop(scanner, GameMode.PVP, geometry);
                     break;
                 case 1:
                     String[] playerOptionTexts = {
@@ -123,10 +150,10 @@ public class Connect4 {
                     input = getUserOption(scanner, playerOptionTexts, playerOptionInputs);
                     switch (input) {
                         case 0:
-                            gameLoop(scanner, GameMode.AI_PLAYER_2);
+                            gameLoop(scanner, GameMode.AI_PLAYER_2, geometry);
                             break;
                         case 1:
-                            gameLoop(scanner, GameMode.AI_PLAYER_1);
+                            gameLoop(scanner, GameMode.AI_PLAYER_1, geometry);
                             break;
                         default:
                             break;
@@ -0,0 +1,16 @@
+// Evaluator estimates how good a position is for the player to move without
+// searching it, so that a depth-limited search can tell the positions at its depth
+// limit apart instead of scoring them all as draws.
+public interface Evaluator {
+    // Evaluations are in [-MAX_VALUE, MAX_VALUE]. Searches scale the results of
+    // finished games above MAX_VALUE so that an evaluation never outweighs a win
+    int MAX_VALUE = 1023;
+
+    // NONE scores every position as a draw
+    Evaluator NONE = position -> 0;
+
+    // evaluate returns a positive value if the player to move is better off, a
+    // negative value if the opponent is and 0 if neither is. The position has no
+    // winning move for the player to move
+    int evaluate(Position position);
+}
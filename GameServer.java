@@ -0,0 +1,550 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// GameServer hosts games against the AI over TCP, so that many players can play at
+// once instead of one player at the Connect4 console. Every connection can play
+// any number of games at the same time, each a Position of a few longs, so a
+// server holds thousands of games in a few MB.
+//
+// The protocol is one request per line and one reply line per request, in order.
+// Columns start from 1 like in move strings, see PositionCodec:
+//   NEW              -> GAME <id>                 starts a game on the board of the server
+//   PLAY <id> <col>  -> OK <id> <state>           plays the player's move
+//   AI <id>          -> MOVE <id> <col> <state>   lets the AI choose and play the next move
+//   BOARD <id>       -> BOARD <id> <moves>        the moves played so far
+//   END <id>         -> OK <id>                   ends the game
+//   STATS            -> STATS <metrics>           server, search and cache metrics
+//   QUIT                                          closes the connection
+// where state is a Board.State. Errors are replied with "ERROR <message>", and
+// either player may move in a game, so two clients can also play each other.
+//
+// One selector thread does all the I/O and answers every request but AI. AI
+// requests run on a fixed pool of workers with a bounded queue, and every worker
+// has an engine of its own. Engines that play from a model share the model of
+// the ModelRegistry. The server pushes back on clients that send requests faster
+// than it answers them instead of buffering them:
+// - A connection isn't read while its AI request waits or runs, so its next
+// requests stay in the socket buffers and TCP slows the client down.
+// - When the queue of the workers is full, the request waits with its connection
+// until a worker finishes a request.
+// - A connection isn't read while it has more than MAX_PENDING_OUTPUT bytes of
+// replies that the client hasn't read.
+public class GameServer implements Closeable {
+    public static final int DEFAULT_PORT = 4444;
+    // Default number of AI requests that can wait for a worker
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    // Default number of games the server hosts at most
+    public static final int DEFAULT_MAX_GAMES = 100_000;
+    // Longest request line, longer lines close the connection
+    private static final int MAX_LINE_BYTES = 256;
+    private static final int MAX_PENDING_OUTPUT = 64 * 1024;
+    // Time close waits for the AI requests that are running or queued
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final Geometry geometry;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
+    // worker holds the engine of every worker thread
+    private final ThreadLocal<Worker> worker;
+    private final SearchMetrics metrics = new SearchMetrics();
+    // completed holds the connections whose AI request a worker finished. Workers
+    // add to it, the selector thread takes from it
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+    // stalled holds the connections whose AI request didn't fit in the queue
+    private final ArrayDeque<Connection> stalled = new ArrayDeque<>();
+    private final int maxGames;
+    // cache is the cache the engines share, if any, for STATS
+    private CachingEngine.Cache cache;
+    // Number of games of all connections. Only the selector thread uses it
+    private int games;
+    private int connections;
+    private volatile boolean running;
+    private Thread thread;
+
+    // Creates a server for games on geometry that listens on address. Every one of
+    // the threads workers plays with an engine from engines, which must play on
+    // geometry
+    public GameServer(Geometry geometry, Supplier<? extends SearchEngine> engines, InetSocketAddress address,
+            int threads, int queueCapacity, int maxGames) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.geometry = geometry;
+        this.maxGames = maxGames;
+        this.worker = ThreadLocal.withInitial(() -> new Worker(engines.get()));
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity));
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        try {
+            this.server.bind(address);
+            this.server.configureBlocking(false);
+            this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            this.server.close();
+            this.selector.close();
+            this.workers.shutdown();
+            throw e;
+        }
+    }
+
+    // getPort returns the port the server listens on, e.g. when it was created
+    // with port 0
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) this.server.getLocalAddress()).getPort();
+    }
+
+    // getMetrics returns the metrics of the AI requests of all games
+    public SearchMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    // setCache tells the server the cache its engines share, see CachingEngine, so
+    // that STATS reports how well it works. Call it before start
+    public void setCache(CachingEngine.Cache cache) {
+        this.cache = cache;
+    }
+
+    // start starts serving on a thread of the server
+    public synchronized void start() {
+        if (this.thread != null) {
+            throw new IllegalStateException("server already started");
+        }
+        this.running = true;
+        this.thread = new Thread(this::run, "GameServer");
+        this.thread.start();
+    }
+
+    // close stops the server and closes every connection. AI requests that are
+    // running or queued get up to CLOSE_TIMEOUT_SECONDS to finish and send their
+    // replies, later requests are answered with an error
+    @Override
+    public synchronized void close() throws IOException {
+        this.workers.shutdown();
+        try {
+            if (!this.workers.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                this.workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        this.running = false;
+        this.selector.wakeup();
+        if (this.thread != null) {
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (SelectionKey key : this.selector.keys()) {
+            key.channel().close();
+        }
+        this.selector.close();
+    }
+
+    private void run() {
+        try {
+            while (this.running) {
+                this.selector.select();
+                Connection connection;
+                while ((connection = this.completed.poll()) != null) {
+                    complete(connection);
+                }
+                retryStalled();
+                for (SelectionKey key : this.selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (IOException e) {
+                        // The client went away
+                        disconnect(connection);
+                    }
+                }
+                this.selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.err.println("Game server stopped: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+        this.connections++;
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.input) < 0) {
+            // The client won't send more requests, but may still read the replies
+            // to the ones it sent, so they are answered before the connection closes
+            connection.inputClosed = true;
+        }
+        process(connection);
+    }
+
+    private void write(Connection connection) throws IOException {
+        connection.output.flip();
+        connection.channel.write(connection.output);
+        connection.output.compact();
+        if (connection.closing && connection.output.position() == 0) {
+            disconnect(connection);
+            return;
+        }
+        // Writing may have made room for more replies
+        process(connection);
+    }
+
+    // process answers the complete request lines of connection until it has to
+    // wait for a worker or for the client to read its replies, and then updates
+    // which events the selector waits for
+    private void process(Connection connection) {
+        ByteBuffer input = connection.input;
+        while (connection.game == null && !connection.closing
+                && connection.output.position() < MAX_PENDING_OUTPUT) {
+            int end = -1;
+            for (int i = 0; i < input.position(); i++) {
+                if (input.get(i) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end == -1) {
+                if (!input.hasRemaining()) {
+                    reply(connection, "ERROR line too long");
+                    connection.closing = true;
+                } else if (connection.inputClosed) {
+                    // Every request was answered, an incomplete last line is dropped
+                    connection.closing = true;
+                }
+                break;
+            }
+            byte[] line = new byte[end];
+            input.flip();
+            input.get(line);
+            input.get();
+            input.compact();
+            handle(connection, new String(line, StandardCharsets.US_ASCII).trim());
+        }
+        if (!connection.key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (connection.game == null && !connection.closing && !connection.inputClosed
+                && connection.output.position() < MAX_PENDING_OUTPUT) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (connection.output.position() > 0 || connection.closing) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    // handle answers one request of connection
+    private void handle(Connection connection, String line) {
+        String[] args = line.split("\\s+");
+        try {
+            switch (args[0].toUpperCase()) {
+                case "NEW":
+                    if (this.games >= this.maxGames) {
+                        throw new IllegalStateException("too many games");
+                    }
+                    Game created = new Game(connection.nextGame++, this.geometry.newPosition());
+                    connection.games.put(created.id, created);
+                    this.games++;
+                    reply(connection, "GAME " + created.id);
+                    break;
+                case "PLAY":
+                    Game game = liveGame(connection, args, 3);
+                    int col = args[2].length() == 1 ? PositionCodec.col(args[2].charAt(0)) : -1;
+                    if (col < 0 || col >= this.geometry.cols() || !game.position.canPlay(col)) {
+                        throw new IllegalArgumentException("can't play column " + args[2]);
+                    }
+                    game.play(col);
+                    reply(connection, "OK " + game.id + " " + game.state);
+                    break;
+                case "AI":
+                    connection.game = liveGame(connection, args, 2);
+                    submit(connection);
+                    break;
+                case "BOARD":
+                    game = game(connection, args, 2);
+                    reply(connection, "BOARD " + game.id + " " + PositionCodec.format(game.position));
+                    break;
+                case "END":
+                    game = game(connection, args, 2);
+                    connection.games.remove(game.id);
+                    this.games--;
+                    reply(connection, "OK " + game.id);
+                    break;
+                case "STATS":
+                    reply(connection, "STATS " + stats());
+                    break;
+                case "QUIT":
+                    connection.closing = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown request " + args[0]);
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            reply(connection, "ERROR " + e.getMessage());
+        }
+    }
+
+    // game returns the game named by the request args, which must have count words
+    private Game game(Connection connection, String[] args, int count) {
+        if (args.length != count) {
+            throw new IllegalArgumentException("expected " + (count - 1) + " arguments to " + args[0]);
+        }
+        Game game;
+        try {
+            game = connection.games.get(Integer.parseInt(args[1]));
+        } catch (NumberFormatException e) {
+            game = null;
+        }
+        if (game == null) {
+            throw new IllegalArgumentException("no game " + args[1]);
+        }
+        return game;
+    }
+
+    // liveGame returns the game named by the request args like game, if the game
+    // isn't over
+    private Game liveGame(Connection connection, String[] args, int count) {
+        Game game = game(connection, args, count);
+        if (game.state != Board.State.LIVE) {
+            throw new IllegalStateException("game " + game.id + " is over");
+        }
+        return game;
+    }
+
+    // submit hands the AI request of connection to the workers, or stalls it if
+    // their queue is full. Once the server is closing, the request is answered with
+    // an error instead
+    private void submit(Connection connection) {
+        if (this.workers.isShutdown()) {
+            connection.result = "ERROR server is closing";
+            this.completed.add(connection);
+            this.selector.wakeup();
+            return;
+        }
+        try {
+            this.workers.execute(() -> think(connection));
+        } catch (RejectedExecutionException e) {
+            // Either the queue is full or the server started closing, retryStalled
+            // finds out which
+            this.stalled.add(connection);
+        }
+    }
+
+    // retryStalled submits the stalled requests, oldest first, until the queue is
+    // full again
+    private void retryStalled() {
+        while (!this.stalled.isEmpty() && this.workers.getQueue().remainingCapacity() > 0) {
+            Connection connection = this.stalled.poll();
+            if (connection.key.isValid()) {
+                submit(connection);
+            }
+        }
+    }
+
+    // think runs on a worker and plays the AI's move in the game of the request of
+    // connection. Until the reply is taken by complete, the game belongs to the
+    // worker
+    private void think(Connection connection) {
+        Game game = connection.game;
+        try {
+            Worker worker = this.worker.get();
+            long start = System.nanoTime();
+            int col = worker.engine.chooseCol(game.position, worker.scores);
+            worker.engine.recordSearch(this.metrics, System.nanoTime() - start);
+            game.play(col);
+            connection.result = "MOVE " + game.id + " " + PositionCodec.symbol(col) + " " + game.state;
+        } catch (RuntimeException e) {
+            connection.result = "ERROR " + (e.getMessage() != null ? e.getMessage() : "the AI failed");
+        }
+        this.completed.add(connection);
+        this.selector.wakeup();
+    }
+
+    // complete sends the reply of a finished AI request and goes on with the next
+    // requests of its connection
+    private void complete(Connection connection) {
+        connection.game = null;
+        if (!connection.key.isValid()) {
+            return;
+        }
+        reply(connection, connection.result);
+        connection.result = null;
+        process(connection);
+    }
+
+    private void reply(Connection connection, String reply) {
+        byte[] bytes = (reply + "\n").getBytes(StandardCharsets.US_ASCII);
+        if (connection.output.remaining() < bytes.length) {
+            ByteBuffer output = ByteBuffer.allocate(
+                    Math.max(2 * connection.output.capacity(), connection.output.position() + bytes.length));
+            connection.output.flip();
+            output.put(connection.output);
+            connection.output = output;
+        }
+        connection.output.put(bytes);
+    }
+
+    private void disconnect(Connection connection) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with the connection
+        }
+        this.games -= connection.games.size();
+        connection.games.clear();
+        this.connections--;
+    }
+
+    private String stats() {
+        SearchMetrics.Snapshot snapshot = this.metrics.snapshot();
+        String stats = String.format("games=%d connections=%d queued=%d stalled=%d searches=%d p50=%s p99=%s max=%s",
+                this.games, this.connections, this.workers.getQueue().size(), this.stalled.size(),
+                snapshot.searches(), LatencyHistogram.format(snapshot.latency().percentile(0.5)),
+                LatencyHistogram.format(snapshot.latency().percentile(0.99)),
+                LatencyHistogram.format(snapshot.latency().max()));
+        if (this.cache == null) {
+            return stats;
+        }
+        return stats + String.format(" cacheSize=%d cacheHits=%d cacheMisses=%d cacheHitRate=%.3f cacheEvictions=%d",
+                this.cache.size(), this.cache.hits(), this.cache.misses(), this.cache.hitRate(),
+                this.cache.evictions());
+    }
+
+    // Game is one game of a connection
+    private static final class Game {
+        private final int id;
+        private final Position position;
+        private Board.State state = Board.State.LIVE;
+
+        Game(int id, Position position) {
+            this.id = id;
+            this.position = position;
+        }
+
+        // play plays col for the player to move and updates the state of the game
+        void play(int col) {
+            if (this.position.isWinningMove(col)) {
+                this.state = this.position.moves() % 2 == 0 ? Board.State.PLAYER_1_WON : Board.State.PLAYER_2_WON;
+            }
+            this.position.play(col);
+            if (this.state == Board.State.LIVE && this.position.moves() == this.position.geometry().cells()) {
+                this.state = Board.State.TIED;
+            }
+        }
+    }
+
+    // Connection holds the games and buffers of one client. Only the selector
+    // thread uses it, except for game and result while a worker runs the AI
+    // request
+    private static final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer input = ByteBuffer.allocate(MAX_LINE_BYTES);
+        // output holds the replies not sent yet
+        private ByteBuffer output = ByteBuffer.allocate(MAX_LINE_BYTES);
+        private final Map<Integer, Game> games = new HashMap<>();
+        private int nextGame = 1;
+        // game is the game of the AI request waiting for or run by a worker, null if
+        // there is none, and result is its reply
+        private Game game;
+        private String result;
+        // closing is set once the connection is closed after sending its replies
+        private boolean closing;
+        // inputClosed is set once the client shut down its side of the connection
+        private boolean inputClosed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    // Worker holds the engine of a worker thread
+    private static final class Worker {
+        private final SearchEngine engine;
+        private final double[] scores;
+
+        Worker(SearchEngine engine) {
+            this.engine = engine;
+            this.scores = new double[engine.getGeometry().cols()];
+        }
+    }
+
+    // Usage: java GameServer [port [threads [rows cols [win]]]]
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Geometry geometry = args.length > 3
+                ? new Geometry(Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                        args.length > 4 ? Integer.parseInt(args[4]) : Geometry.DEFAULT.winCondition())
+                : Geometry.DEFAULT;
+        // Load or solve the model before the first game needs it
+        System.out.println("Loading AI model...");
+        long start = System.nanoTime();
+        boolean searches = !(Connect4.loadEngine(geometry) instanceof AveragingModelEngine);
+        System.out.println(String.format("Loaded in %.1fs", (System.nanoTime() - start) / 1e9));
+        // Engines that search share a cache of their results, since the games of a
+        // server keep reaching the same positions. A model is a lookup already, so
+        // it gets no cache and STATS reports none
+        CachingEngine.Cache cache = searches
+                ? new CachingEngine.Cache(geometry.cols(), CachingEngine.Cache.DEFAULT_CAPACITY)
+                : null;
+        Supplier<SearchEngine> engines = cache == null
+                ? () -> Connect4.loadEngine(geometry)
+                : () -> new CachingEngine(Connect4.loadEngine(geometry), cache);
+        GameServer server = new GameServer(geometry, engines, new InetSocketAddress(port), threads,
+                DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_GAMES);
+        if (cache != null) {
+            server.setCache(cache);
+        }
+        server.start();
+        System.out.println(String.format("Serving %s games on port %d with %d workers", geometry, server.getPort(),
+                threads));
+    }
+}
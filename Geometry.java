@@ -0,0 +1,104 @@
+// Geometry is the size of the board and the number of tokens in a row needed to
+// win. It also holds the values derived from them that the bitboard positions
+// and the engines need on every move, so they are computed only once.
+public final class Geometry {
+    // DEFAULT is the board the game is played on unless another one is picked
+    public static final Geometry DEFAULT = new Geometry(4, 5, 4);
+    // STANDARD is the standard 6x7 Connect 4 board
+    public static final Geometry STANDARD = new Geometry(6, 7, 4);
+    // Largest number of bits a position supports, see WidePosition
+    static final int MAX_BITS = 2 * Long.SIZE;
+    // Largest number of columns, the most that move strings can name with one
+    // character each, see PositionCodec
+    public static final int MAX_COLS = 35;
+
+    private final int rows;
+    private final int cols;
+    private final int winCondition;
+    // Columns ordered from the center out, e.g. 3, 2, 4, 1, 5, 0, 6 for 7 columns
+    private final int[] columnOrder;
+
+    public Geometry(int rows, int cols, int winCondition) {
+        if (rows < 1 || cols < 1 || winCondition < 2) {
+            throw new IllegalArgumentException(
+                    String.format("invalid board %dx%d connect %d", rows, cols, winCondition));
+        }
+        if ((rows + 1) * cols > MAX_BITS || cols > MAX_COLS) {
+            throw new IllegalArgumentException(String.format("board %dx%d is too large", rows, cols));
+        }
+        // A line longer than both sides of the board can never be completed, and
+        // its shifts would reach past the bits of a position
+        if (winCondition > Math.max(rows, cols)) {
+            throw new IllegalArgumentException(String.format("board %dx%d can't fit %d in a row", rows, cols,
+                    winCondition));
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.winCondition = winCondition;
+        this.columnOrder = new int[cols];
+        for (int i = 0; i < cols; i++) {
+            // Alternate around the center: 0, -1, +1, -2, +2, ...
+            int offset = (i + 1) / 2;
+            this.columnOrder[i] = cols / 2 + (i % 2 == 1 ? -offset : offset);
+        }
+    }
+
+    public int rows() {
+        return this.rows;
+    }
+
+    public int cols() {
+        return this.cols;
+    }
+
+    public int winCondition() {
+        return this.winCondition;
+    }
+
+    // height returns the number of bits per column of a bitboard, which is one
+    // more than the number of rows for the sentinel row
+    public int height() {
+        return this.rows + 1;
+    }
+
+    public int cells() {
+        return this.rows * this.cols;
+    }
+
+    // columnOrder returns the i-th column counting from the center out
+    public int columnOrder(int i) {
+        return this.columnOrder[i];
+    }
+
+    // fitsInLong returns whether a bitboard of this board fits in a single long
+    public boolean fitsInLong() {
+        return height() * this.cols <= Long.SIZE;
+    }
+
+    // newPosition creates an empty position with the representation for this board
+    public Position newPosition() {
+        if (fitsInLong()) {
+            return new LongPosition(this);
+        }
+        return new WidePosition(this);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Geometry)) {
+            return false;
+        }
+        Geometry geometry = (Geometry) other;
+        return this.rows == geometry.rows && this.cols == geometry.cols && this.winCondition == geometry.winCondition;
+    }
+
+    @Override
+    public int hashCode() {
+        return (this.rows * 31 + this.cols) * 31 + this.winCondition;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dx%d connect %d", this.rows, this.cols, this.winCondition);
+    }
+}
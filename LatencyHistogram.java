@@ -0,0 +1,102 @@
+// LatencyHistogram counts latencies in nanoseconds. Buckets get wider as the
+// latency grows: every power of two is split into SUB_BUCKETS buckets, so the
+// histogram covers nanoseconds to hours in under a thousand counters and reports
+// percentiles within 1 / SUB_BUCKETS of the recorded latency.
+//
+// Recording doesn't allocate but isn't thread safe. Every thread records into a
+// histogram of its own and the histograms are merged with add.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // counts[i] holds the number of latencies in bucket i, see bucket
+    private final long[] counts = new long[(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    public void record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        this.counts[bucket(nanos)]++;
+        this.count++;
+        this.total += nanos;
+        this.max = Math.max(this.max, nanos);
+    }
+
+    // add adds the latencies recorded by other to this histogram
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.total += other.total;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    public void reset() {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] = 0;
+        }
+        this.count = 0;
+        this.total = 0;
+        this.max = 0;
+    }
+
+    public long count() {
+        return this.count;
+    }
+
+    public long max() {
+        return this.max;
+    }
+
+    public double mean() {
+        return this.count == 0 ? 0 : (double) this.total / this.count;
+    }
+
+    // percentile returns the latency that a fraction p of the recorded latencies
+    // doesn't exceed, e.g. p = 0.99 for the 99th percentile. The latency is the
+    // upper end of its bucket, so it errs on the slow side
+    public long percentile(double p) {
+        long rank = Math.max(1, (long) Math.ceil(p * this.count));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length; i++) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketStart(i + 1) - 1, this.max);
+            }
+        }
+        return this.max;
+    }
+
+    // format formats a latency for printing, e.g. "250ns", "1.5us" or "12.0ms"
+    public static String format(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + "ns";
+        }
+        if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        }
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    // bucket returns the bucket of nanos. Latencies below SUB_BUCKETS have a bucket
+    // each, larger latencies go by their highest bit and the SUB_BUCKET_BITS bits
+    // below it
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // bucketStart returns the smallest latency of bucket i
+    private static long bucketStart(int i) {
+        if (i < SUB_BUCKETS) {
+            return i;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + i % SUB_BUCKETS) << shift;
+    }
+}
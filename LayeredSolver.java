@@ -0,0 +1,333 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+// LayeredSolver solves the same averaging model as AveragingModelEngine, but one
+// layer of the game tree at a time and on disk, so that boards too large to solve
+// in memory can be solved, and a solve that is interrupted picks up where it
+// stopped. Layer n holds the positions with n tokens, keyed by the canonical key
+// like the model.
+//
+// The solve has three phases, all of which stream their files:
+// - Forward: layer n + 1 is generated from the positions of layer n that the
+// averaging model searches further, i.e. that have no winning move and aren't one
+// move from a full board. The children's keys are collected in sorted runs of at
+// most runSize keys, which are written to disk and merged without duplicates into
+// the sorted key file of the layer.
+// - Backward: starting from the last layer, the positions of every layer are
+// scored from the scores of their children in the layer after it, which is a
+// ModelFile mapped into memory, so the scored layer is a ModelFile itself.
+// - Merge: the scored layers are merged into one ModelFile.
+//
+// Every layer file is written under a temporary name and renamed once it is
+// complete, so the files in the work directory are the checkpoint: a solve that
+// is started again skips every layer that already has its file. Heap use is
+// bounded by one run of keys, whatever the size of the layers.
+//
+// The model is the same as the recursive solver's up to the orientation positions
+// are scored in. The recursive solver scores a position as it first reaches it,
+// which is the position or its mirror image, the layered solver always scores the
+// canonical position. A position with several winning columns may therefore mark
+// another of them with 1, and floating point sums of the averages taken in the
+// other column order can round to the neighbouring quantized score.
+public class LayeredSolver {
+    // Default number of keys sorted in memory at a time, 32 MB of keys
+    public static final int DEFAULT_RUN_SIZE = 1 << 22;
+
+    private final Geometry geometry;
+    // Directory of the layer files
+    private final Path directory;
+    private final int runSize;
+    // printProgress prints the time every layer took
+    private boolean printProgress;
+
+    public LayeredSolver(Geometry geometry, Path directory) {
+        this(geometry, directory, DEFAULT_RUN_SIZE);
+    }
+
+    public LayeredSolver(Geometry geometry, Path directory, int runSize) {
+        if (!geometry.fitsInLong()) {
+            throw new IllegalArgumentException("can't solve board " + geometry + ", its positions don't fit in a long");
+        }
+        if (runSize < 1) {
+            throw new IllegalArgumentException("runSize must be at least 1");
+        }
+        this.geometry = geometry;
+        this.directory = directory;
+        this.runSize = runSize;
+    }
+
+    // setPrintProgress turns printing the progress of solve on or off. It is off by
+    // default
+    public void setPrintProgress(boolean printProgress) {
+        this.printProgress = printProgress;
+    }
+
+    // solve solves the model into the model file at path and returns it. The layer
+    // files are deleted once the model file is complete
+    public ModelFile solve(Path path) throws IOException {
+        Files.createDirectories(this.directory);
+        // The averaging model never searches past the last empty cell, so the last
+        // layer has one token less than the full board
+        int layers = this.geometry.cells();
+        if (!Files.exists(keysPath(0))) {
+            long[] root = {this.geometry.newPosition().canonicalKey()};
+            writeKeys(root, 1, keysPath(0));
+        }
+        for (int layer = 1; layer < layers; layer++) {
+            if (!Files.exists(keysPath(layer))) {
+                long start = System.nanoTime();
+                expand(layer);
+                if (this.printProgress) {
+                    System.out.println(String.format("Layer %d: %d positions in %.1fs", layer,
+                            Files.size(keysPath(layer)) / Long.BYTES, (System.nanoTime() - start) / 1e9));
+                }
+            }
+        }
+        for (int layer = layers - 1; layer >= 0; layer--) {
+            if (!Files.exists(modelPath(layer))) {
+                long start = System.nanoTime();
+                score(layer, layer + 1 < layers ? ModelFile.load(this.geometry, modelPath(layer + 1)) : null);
+                if (this.printProgress) {
+                    System.out.println(String.format("Scored layer %d in %.1fs", layer,
+                            (System.nanoTime() - start) / 1e9));
+                }
+            }
+        }
+        merge(layers, path);
+        for (int layer = 0; layer < layers; layer++) {
+            Files.delete(keysPath(layer));
+            Files.delete(modelPath(layer));
+        }
+        return ModelFile.load(this.geometry, path);
+    }
+
+    // expand writes the sorted keys of the children of the positions of layer - 1
+    // that the averaging model searches further
+    private void expand(int layer) throws IOException {
+        LongPosition position = new LongPosition(this.geometry);
+        long[] run = new long[this.runSize];
+        int count = 0;
+        int runs = 0;
+        try (KeyReader parents = new KeyReader(keysPath(layer - 1))) {
+            while (parents.next()) {
+                position.setKey(parents.key);
+                if (position.canWinNext() || position.moves() == this.geometry.cells() - 1) {
+                    continue;
+                }
+                for (int col = 0; col < this.geometry.cols(); col++) {
+                    if (!position.canPlay(col)) {
+                        continue;
+                    }
+                    if (count == run.length) {
+                        writeKeys(run, count, runPath(layer, runs++));
+                        count = 0;
+                    }
+                    position.play(col);
+                    run[count++] = position.canonicalKey();
+                    position.undo(col);
+                }
+            }
+        }
+        if (runs == 0) {
+            // Everything fit in one run, so it is the layer
+            writeKeys(run, count, keysPath(layer));
+            return;
+        }
+        writeKeys(run, count, runPath(layer, runs++));
+        mergeRuns(layer, runs);
+    }
+
+    // writeKeys sorts the first count keys of keys and writes them without
+    // duplicates to path
+    private void writeKeys(long[] keys, int count, Path path) throws IOException {
+        Arrays.sort(keys, 0, count);
+        Path temporary = temporaryPath(path);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || keys[i] != keys[i - 1]) {
+                    out.writeLong(keys[i]);
+                }
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // mergeRuns merges the sorted runs of layer without duplicates into the key file
+    // of the layer and deletes them
+    private void mergeRuns(int layer, int runs) throws IOException {
+        PriorityQueue<KeyReader> heads = new PriorityQueue<>(Comparator.comparingLong((KeyReader run) -> run.key));
+        Path temporary = temporaryPath(keysPath(layer));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            for (int i = 0; i < runs; i++) {
+                KeyReader run = new KeyReader(runPath(layer, i));
+                if (run.next()) {
+                    heads.add(run);
+                } else {
+                    run.close();
+                }
+            }
+            long last = -1;
+            while (!heads.isEmpty()) {
+                KeyReader run = heads.poll();
+                if (run.key != last) {
+                    out.writeLong(run.key);
+                    last = run.key;
+                }
+                if (run.next()) {
+                    heads.add(run);
+                } else {
+                    run.close();
+                }
+            }
+        } finally {
+            for (KeyReader run : heads) {
+                run.close();
+            }
+        }
+        Files.move(temporary, keysPath(layer), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (int i = 0; i < runs; i++) {
+            Files.delete(runPath(layer, i));
+        }
+    }
+
+    // score writes the scores of the positions of layer, given the scored layer
+    // after it, which is null for the last layer
+    private void score(int layer, ModelFile children) throws IOException {
+        int cols = this.geometry.cols();
+        LongPosition position = new LongPosition(this.geometry);
+        double[] scores = new double[cols];
+        double[] childScores = new double[cols];
+        char[] values = new char[cols];
+        long entries = Files.size(keysPath(layer)) / Long.BYTES;
+        try (KeyReader keys = new KeyReader(keysPath(layer));
+                ModelFile.Writer writer = new ModelFile.Writer(this.geometry, modelPath(layer), entries)) {
+            while (keys.next()) {
+                position.setKey(keys.key);
+                // The same scores as generateModelScores, with the children looked up
+                // in the layer after this one instead of solved
+                if (!AveragingModelEngine.scoreFinalMoves(position, scores)) {
+                    for (int col = 0; col < cols; col++) {
+                        if (!position.canPlay(col)) {
+                            continue;
+                        }
+                        position.play(col);
+                        if (children == null || !children.get(position.canonicalKey(), childScores)) {
+                            throw new IllegalStateException("position " + Long.toHexString(position.canonicalKey())
+                                    + " is missing from layer " + (layer + 1));
+                        }
+                        position.undo(col);
+                        scores[col] = AveragingModelEngine.averageReplyScore(childScores);
+                    }
+                }
+                for (int col = 0; col < cols; col++) {
+                    values[col] = TranspositionTable.quantize(scores[col]);
+                }
+                writer.add(keys.key, values);
+            }
+        }
+    }
+
+    // merge merges the scored layers into the model file at path. Every position
+    // is in exactly one layer, so there are no duplicates to drop
+    private void merge(int layers, Path path) throws IOException {
+        ModelFile[] files = new ModelFile[layers];
+        long[] next = new long[layers];
+        long entries = 0;
+        PriorityQueue<Integer> heads = new PriorityQueue<>(
+                Comparator.comparingLong((Integer layer) -> files[layer].key(next[layer])));
+        for (int layer = 0; layer < layers; layer++) {
+            files[layer] = ModelFile.load(this.geometry, modelPath(layer));
+            entries += files[layer].size();
+            if (files[layer].size() > 0) {
+                heads.add(layer);
+            }
+        }
+        char[] values = new char[this.geometry.cols()];
+        try (ModelFile.Writer writer = new ModelFile.Writer(this.geometry, path, entries)) {
+            while (!heads.isEmpty()) {
+                int layer = heads.poll();
+                files[layer].getQuantized(next[layer], values);
+                writer.add(files[layer].key(next[layer]), values);
+                if (++next[layer] < files[layer].size()) {
+                    heads.add(layer);
+                }
+            }
+        }
+    }
+
+    private Path keysPath(int layer) {
+        return this.directory.resolve(String.format("layer-%03d.keys", layer));
+    }
+
+    private Path runPath(int layer, int run) {
+        return this.directory.resolve(String.format("layer-%03d-run-%05d.keys", layer, run));
+    }
+
+    private Path modelPath(int layer) {
+        return this.directory.resolve(String.format("layer-%03d.model", layer));
+    }
+
+    private static Path temporaryPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    // KeyReader reads a sorted file of keys one key at a time
+    private static class KeyReader implements Closeable {
+        private final DataInputStream in;
+        // key is the key read by the last call to next
+        private long key;
+
+        KeyReader(Path path) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        }
+
+        // next reads the next key and returns whether there was one
+        boolean next() throws IOException {
+            try {
+                this.key = this.in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+
+    // main solves the model of a board into its default model file, keeping the
+    // layers in the work directory. Run it again with the same directory to resume
+    // an interrupted solve
+    // Usage: java LayeredSolver <work directory> [rows cols [win]]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java LayeredSolver <work directory> [rows cols [win]]");
+            System.exit(1);
+        }
+        Geometry geometry = args.length > 2
+                ? new Geometry(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                        args.length > 3 ? Integer.parseInt(args[3]) : Geometry.DEFAULT.winCondition())
+                : Geometry.DEFAULT;
+        Path path = ModelFile.defaultPath(geometry);
+        long start = System.nanoTime();
+        LayeredSolver solver = new LayeredSolver(geometry, Paths.get(args[0]));
+        solver.setPrintProgress(true);
+        ModelFile model = solver.solve(path);
+        System.out.println(String.format("Solved %s: %d positions in %.1fs, saved to %s", geometry, model.size(),
+                (System.nanoTime() - start) / 1e9, path));
+    }
+}
@@ -0,0 +1,271 @@
+// LongPosition is a Position whose bitboards fit in a single long, which covers
+// every board where rows + 1 times columns is at most 64, e.g. the standard 6x7
+// board, 8x7 and 7x8. current holds the tokens of the player to move and mask
+// holds the tokens of both players. The masks that depend on the board are
+// computed once from the geometry. Boards that use all 64 bits have keys with
+// the sign bit set, so their keys can be negative.
+public final class LongPosition extends Position {
+    // Bits per column including the sentinel row
+    private final int height;
+    private final int rows;
+    private final int cols;
+    private final int winCondition;
+    // bottom has the bottom row of each column set
+    private final long bottom;
+    // board has every row except the sentinel row set
+    private final long board;
+
+    // Tokens of the player to move
+    private long current;
+    // Tokens of both players
+    private long mask;
+
+    // Creates an empty position
+    public LongPosition(Geometry geometry) {
+        this(geometry, 0L, 0L, 0);
+    }
+
+    public LongPosition(LongPosition other) {
+        this(other.geometry, other.current, other.mask, other.moves);
+    }
+
+    private LongPosition(Geometry geometry, long current, long mask, int moves) {
+        super(geometry, moves);
+        if (!geometry.fitsInLong()) {
+            throw new IllegalArgumentException("board " + geometry + " doesn't fit in a long");
+        }
+        this.height = geometry.height();
+        this.rows = geometry.rows();
+        this.cols = geometry.cols();
+        this.winCondition = geometry.winCondition();
+        long bottom = 0L;
+        for (int col = 0; col < this.cols; col++) {
+            bottom |= 1L << (col * this.height);
+        }
+        this.bottom = bottom;
+        this.board = bottom * ((1L << this.rows) - 1);
+        this.current = current;
+        this.mask = mask;
+    }
+
+    @Override
+    public LongPosition copy() {
+        return new LongPosition(this);
+    }
+
+    @Override
+    public void reset() {
+        this.current = 0L;
+        this.mask = 0L;
+        this.moves = 0;
+    }
+
+    // setKey sets the position to the one with key, the inverse of key(), and
+    // returns whether key is the key of a position. Within a column the key is
+    // mask + current, where mask has the h bits of the column height set and
+    // current < 2^h, so the key lies in [2^h - 1, 2^(h + 1) - 2] and the height is
+    // the highest bit of key + 1. The position is left unchanged if key is invalid
+    public boolean setKey(long key) {
+        if ((key & ~(this.board | (this.board << 1) | this.bottom)) != 0) {
+            return false;
+        }
+        long columnBits = (1L << this.height) - 1;
+        long current = 0L;
+        long mask = 0L;
+        int moves = 0;
+        for (int col = 0; col < this.cols; col++) {
+            int offset = col * this.height;
+            long column = (key >>> offset) & columnBits;
+            int height = Long.SIZE - 1 - Long.numberOfLeadingZeros(column + 1);
+            if (height > this.rows) {
+                return false;
+            }
+            long columnMask = (1L << height) - 1;
+            current |= (column - columnMask) << offset;
+            mask |= columnMask << offset;
+            moves += height;
+        }
+        this.current = current;
+        this.mask = mask;
+        this.moves = moves;
+        return true;
+    }
+
+    public long current() {
+        return this.current;
+    }
+
+    public long mask() {
+        return this.mask;
+    }
+
+    // bottom returns a bitboard with the bottom cell of every column set
+    public long bottom() {
+        return this.bottom;
+    }
+
+    @Override
+    public long key() {
+        return this.current + this.mask;
+    }
+
+    @Override
+    public long mirrorKey() {
+        return mirror(key());
+    }
+
+    @Override
+    public boolean canPlay(int col) {
+        return (this.mask & topMask(col)) == 0;
+    }
+
+    @Override
+    public int height(int col) {
+        return Long.bitCount(this.mask & columnMask(col));
+    }
+
+    @Override
+    public void play(int col) {
+        // The tokens of the player to move become the tokens of the opponent
+        this.current ^= this.mask;
+        // Adding the bottom bit of the column carries up to the first empty row
+        this.mask |= this.mask + bottomMask(col);
+        this.moves++;
+    }
+
+    @Override
+    public void undo(int col) {
+        this.mask ^= Long.highestOneBit(this.mask & columnMask(col));
+        this.current ^= this.mask;
+        this.moves--;
+    }
+
+    // possible returns a bitboard of the cells where a token can be placed
+    public long possible() {
+        return (this.mask + this.bottom) & this.board;
+    }
+
+    // winningMoves returns a bitboard of the cells where the player to move wins
+    // by placing a token
+    public long winningMoves() {
+        return winningCells(this.current, this.mask) & possible();
+    }
+
+    // opponentWinningMoves returns a bitboard of the cells where the opponent would
+    // win if they could place a token there
+    public long opponentWinningMoves() {
+        return winningCells(this.current ^ this.mask, this.mask) & possible();
+    }
+
+    @Override
+    public boolean isWinningMove(int col) {
+        return (winningMoves() & columnMask(col)) != 0;
+    }
+
+    @Override
+    public boolean canWinNext() {
+        return winningMoves() != 0;
+    }
+
+    @Override
+    public int threatCount(int col) {
+        long bit = (this.mask + bottomMask(col)) & columnMask(col);
+        return Long.bitCount(winningCells(this.current | bit, this.mask | bit));
+    }
+
+    @Override
+    public boolean isOccupied(int row, int col) {
+        return (this.mask & cell(row, col)) != 0;
+    }
+
+    @Override
+    public boolean isCurrent(int row, int col) {
+        return (this.current & cell(row, col)) != 0;
+    }
+
+    @Override
+    protected void addToken(int col, boolean current) {
+        long bit = (this.mask + bottomMask(col)) & columnMask(col);
+        this.mask |= bit;
+        if (current) {
+            this.current |= bit;
+        }
+        this.moves++;
+    }
+
+    // alignment returns whether tokens has winCondition tokens in a row in any of
+    // the four directions
+    public boolean alignment(long tokens) {
+        // Vertical, horizontal and both diagonals
+        return alignment(tokens, 1) || alignment(tokens, this.height) || alignment(tokens, this.height - 1)
+                || alignment(tokens, this.height + 1);
+    }
+
+    private boolean alignment(long tokens, int shift) {
+        // Keep the tokens that have winCondition - 1 more tokens after them
+        long streak = tokens;
+        for (int i = 1; i < this.winCondition; i++) {
+            streak &= tokens >>> (i * shift);
+        }
+        return streak != 0;
+    }
+
+    // winningCells returns a bitboard of the empty cells that would complete a line
+    // of winCondition tokens, whether they can be played right now or not
+    public long winningCells(long tokens, long mask) {
+        long cells = winningCells(tokens, this.height) | winningCells(tokens, this.height - 1)
+                | winningCells(tokens, this.height + 1);
+        // Vertically only the cell on top of the column can complete a line
+        long vertical = -1L;
+        for (int i = 1; i < this.winCondition; i++) {
+            vertical &= tokens << i;
+        }
+        return (cells | vertical) & (this.board ^ mask);
+    }
+
+    // winningCells returns the cells that complete a line in the direction of
+    // shift. A cell completes a line if it has a tokens before it and b tokens after
+    // it with a + b = winCondition - 1
+    private long winningCells(long tokens, int shift) {
+        long cells = 0L;
+        // before holds the cells with a tokens before them, starting with a = 0
+        long before = -1L;
+        for (int a = 0; a < this.winCondition; a++) {
+            // after holds the cells with winCondition - 1 - a tokens after them
+            long after = -1L;
+            for (int b = 1; b < this.winCondition - a; b++) {
+                after &= tokens >>> (b * shift);
+            }
+            cells |= before & after;
+            before &= tokens << ((a + 1) * shift);
+        }
+        return cells;
+    }
+
+    // mirror returns the bitboard mirrored left to right
+    public long mirror(long bitboard) {
+        long columnBits = (1L << this.height) - 1;
+        long mirrored = 0L;
+        for (int col = 0; col < this.cols; col++) {
+            long column = (bitboard >>> (col * this.height)) & columnBits;
+            mirrored |= column << ((this.cols - 1 - col) * this.height);
+        }
+        return mirrored;
+    }
+
+    public long columnMask(int col) {
+        return ((1L << this.rows) - 1) << (col * this.height);
+    }
+
+    public long bottomMask(int col) {
+        return 1L << (col * this.height);
+    }
+
+    public long topMask(int col) {
+        return 1L << (col * this.height + this.rows - 1);
+    }
+
+    private long cell(int row, int col) {
+        return 1L << (col * this.height + row);
+    }
+}
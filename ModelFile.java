@@ -0,0 +1,268 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// ModelFile is a solved model stored on disk. The file starts with a header that
+// records the board the model was solved for, followed by the entries sorted by
+// key. Each entry is the key followed by the quantized score of every column:
+//
+//   int  MAGIC
+//   int  VERSION
+//   int  ROWS, COLS, WIN_CONDITION
+//   long number of entries
+//   entries: long key, char[COLS] scores
+//
+// Loading maps the file into memory, so the model costs no heap and is only read
+// from disk as pages are touched. Lookups binary search the sorted entries. A
+// buffer can't be larger than 2 GB, so the entries are mapped in chunks of whole
+// entries of up to CHUNK_BYTES each, and models of any size can be loaded.
+//
+// A model file never changes once it is created and lookups only use absolute
+// reads of the buffers, so one model file can be shared by any number of threads.
+// A model that can't be saved keeps its entries in memory in the same layout, see
+// of.
+public final class ModelFile {
+    private static final int MAGIC = 0x43344d44;
+    // Version 2 keys entries by the canonical position key
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES + Long.BYTES;
+    // Most bytes of entries mapped by one buffer
+    private static final int CHUNK_BYTES = 1 << 30;
+
+    // chunks hold the entries, chunkEntries of them per chunk
+    private final ByteBuffer[] chunks;
+    private final long chunkEntries;
+    private final long entries;
+    private final int cols;
+    // Size of an entry, the key followed by the score of every column
+    private final int entryBytes;
+
+    private ModelFile(ByteBuffer[] chunks, long chunkEntries, long entries, int cols) {
+        this.chunks = chunks;
+        this.chunkEntries = chunkEntries;
+        this.entries = entries;
+        this.cols = cols;
+        this.entryBytes = entryBytes(cols);
+    }
+
+    // defaultPath returns the file the solved model of geometry is saved to, so
+    // that only the first game has to generate it
+    public static Path defaultPath(Geometry geometry) {
+        return Paths.get(String.format("connect4-%dx%d-%d.model", geometry.rows(), geometry.cols(),
+                geometry.winCondition()));
+    }
+
+    // write stores all entries of model, which was solved for geometry, in the
+    // file at path
+    public static void write(TranspositionTable model, Geometry geometry, Path path) throws IOException {
+        long[] keys = model.keys();
+        Arrays.sort(keys);
+        char[] values = new char[geometry.cols()];
+        try (Writer writer = new Writer(geometry, path, keys.length)) {
+            for (long key : keys) {
+                model.getQuantized(key, values);
+                writer.add(key, values);
+            }
+        }
+    }
+
+    // of copies all entries of model, which was solved for geometry, into a model
+    // file kept in memory
+    public static ModelFile of(TranspositionTable model, Geometry geometry) {
+        long[] keys = model.keys();
+        Arrays.sort(keys);
+        long bytes = (long) keys.length * entryBytes(geometry.cols());
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("model is too large to keep in memory: " + bytes + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) bytes);
+        char[] values = new char[geometry.cols()];
+        for (long key : keys) {
+            model.getQuantized(key, values);
+            buffer.putLong(key);
+            for (char value : values) {
+                buffer.putChar(value);
+            }
+        }
+        return new ModelFile(new ByteBuffer[] {buffer}, Math.max(keys.length, 1), keys.length, geometry.cols());
+    }
+
+    // load maps the file at path into memory. It throws if the file wasn't solved
+    // for geometry
+    public static ModelFile load(Geometry geometry, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            if (header.position() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+                throw new IOException("not a model file: " + path);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("unsupported model file version " + header.getInt(4));
+            }
+            int rows = header.getInt(8);
+            int cols = header.getInt(12);
+            int winCondition = header.getInt(16);
+            if (rows != geometry.rows() || cols != geometry.cols() || winCondition != geometry.winCondition()) {
+                throw new IOException(String.format("model file was solved for %dx%d connect %d, not %s",
+                        rows, cols, winCondition, geometry));
+            }
+            long entries = header.getLong(20);
+            int entryBytes = entryBytes(cols);
+            if (HEADER_BYTES + entries * entryBytes != channel.size()) {
+                throw new IOException("model file is truncated: " + path);
+            }
+            long chunkEntries = CHUNK_BYTES / entryBytes;
+            ByteBuffer[] chunks = new ByteBuffer[(int) Math.max(1, (entries + chunkEntries - 1) / chunkEntries)];
+            for (int i = 0; i < chunks.length; i++) {
+                long first = i * chunkEntries;
+                long count = Math.min(chunkEntries, entries - first);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * entryBytes,
+                        count * entryBytes);
+            }
+            return new ModelFile(chunks, chunkEntries, entries, cols);
+        }
+    }
+
+    public long size() {
+        return this.entries;
+    }
+
+    // key returns the key of the i-th entry. Entries are sorted by key, so keys
+    // and getQuantized read a model file in order, e.g. to merge it with others
+    long key(long i) {
+        return chunk(i).getLong(offset(i));
+    }
+
+    // getQuantized copies the quantized scores of the i-th entry into values
+    void getQuantized(long i, char[] values) {
+        ByteBuffer chunk = chunk(i);
+        int offset = offset(i) + Long.BYTES;
+        for (int col = 0; col < this.cols; col++) {
+            values[col] = chunk.getChar(offset + col * Character.BYTES);
+        }
+    }
+
+    // get copies the scores stored for key into scores and returns whether the key
+    // was found
+    public boolean get(long key, double[] scores) {
+        long low = 0;
+        long high = this.entries - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            ByteBuffer chunk = chunk(mid);
+            int offset = offset(mid);
+            long midKey = chunk.getLong(offset);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                offset += Long.BYTES;
+                for (int col = 0; col < this.cols; col++) {
+                    scores[col] = TranspositionTable.dequantize(chunk.getChar(offset + col * Character.BYTES));
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // chunk returns the buffer holding the i-th entry
+    private ByteBuffer chunk(long i) {
+        return this.chunks[(int) (i / this.chunkEntries)];
+    }
+
+    // offset returns the offset of the i-th entry in its chunk
+    private int offset(long i) {
+        return (int) (i % this.chunkEntries) * this.entryBytes;
+    }
+
+    private static int entryBytes(int cols) {
+        return Long.BYTES + cols * Character.BYTES;
+    }
+
+    // Writer writes a model file one entry at a time, for models that are too
+    // large to collect in a TranspositionTable first. The number of entries goes
+    // into the header, so it must be known up front, and entries must be added in
+    // increasing key order.
+    //
+    // The entries are written to a temporary file next to path, which only
+    // replaces path once all of them were added, so a write that fails or is
+    // interrupted never leaves a truncated model where the next run loads it. The
+    // temporary file is named after the process and thread, so writers of the same
+    // model don't write into each other's file, and a process that reads the model
+    // at the same time sees either the old file or the complete new one
+    public static final class Writer implements Closeable {
+        private final Path path;
+        private final Path temporary;
+        private final DataOutputStream out;
+        private final long entries;
+        private long added;
+        // Keys of boards that use all 64 bits can be negative, so the first key has
+        // nothing to compare with rather than a sentinel below every key
+        private long lastKey;
+
+        public Writer(Geometry geometry, Path path, long entries) throws IOException {
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid() + "-"
+                    + Thread.currentThread().getId() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.temporary)));
+            this.entries = entries;
+            try {
+                this.out.writeInt(MAGIC);
+                this.out.writeInt(VERSION);
+                this.out.writeInt(geometry.rows());
+                this.out.writeInt(geometry.cols());
+                this.out.writeInt(geometry.winCondition());
+                this.out.writeLong(entries);
+            } catch (IOException e) {
+                this.out.close();
+                Files.deleteIfExists(this.temporary);
+                throw e;
+            }
+        }
+
+        // add writes the entry of key with the quantized scores values
+        public void add(long key, char[] values) throws IOException {
+            if (this.added > 0 && key <= this.lastKey) {
+                throw new IllegalArgumentException("key " + key + " added after key " + this.lastKey);
+            }
+            if (this.added == this.entries) {
+                throw new IllegalStateException("more than " + this.entries + " entries added");
+            }
+            this.out.writeLong(key);
+            for (char value : values) {
+                this.out.writeChar(value);
+            }
+            this.lastKey = key;
+            this.added++;
+        }
+
+        // close flushes the file and moves it to path. It deletes the file instead
+        // and throws if fewer entries were added than the header promises
+        @Override
+        public void close() throws IOException {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                Files.deleteIfExists(this.temporary);
+                throw e;
+            }
+            if (this.added != this.entries) {
+                Files.deleteIfExists(this.temporary);
+                throw new IOException("only " + this.added + " of " + this.entries + " entries were added");
+            }
+            Files.move(this.temporary, this.path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// ModelRegistry holds the solved model of every board played in the process. The
+// first request for a board loads its model file, or solves the model and saves it
+// for the next process, and every later request gets the same model. Concurrent
+// games on a board therefore share one table and only the first of them waits
+// for it.
+//
+// Models are ModelFiles, which never change and are safe to share between
+// threads. Every game gets an engine of its own from engine, since engines keep
+// scratch buffers, but the engine only references the shared model.
+//
+// A solved model is saved under a temporary name and renamed into place, see
+// ModelFile.Writer, so other processes that map or load the model file at the
+// same time see either no file or a complete one.
+public final class ModelRegistry {
+    // MODELS holds a task per board that loads or solves its model. The task runs
+    // once, every caller waits for its result
+    private static final ConcurrentHashMap<Geometry, FutureTask<ModelFile>> MODELS = new ConcurrentHashMap<>();
+
+    private ModelRegistry() {
+    }
+
+    // model returns the solved model of geometry, loading or solving it on first use
+    public static ModelFile model(Geometry geometry) {
+        FutureTask<ModelFile> task = MODELS.computeIfAbsent(geometry,
+                key -> new FutureTask<ModelFile>(() -> loadOrSolve(key)));
+        // Only the first caller runs the task, running it again does nothing
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the model of " + geometry, e);
+        } catch (ExecutionException e) {
+            // Let the next caller try again
+            MODELS.remove(geometry, task);
+            throw new IllegalStateException("could not solve the model of " + geometry, e.getCause());
+        }
+    }
+
+    // engine returns a new engine for one game that plays from the shared model of
+    // geometry
+    public static AveragingModelEngine engine(Geometry geometry) {
+        return new AveragingModelEngine(geometry, model(geometry));
+    }
+
+    // loadOrSolve loads the model file of geometry if there is one. Otherwise it
+    // solves the model and saves it, keeping the model in memory if it can't be
+    // saved
+    private static ModelFile loadOrSolve(Geometry geometry) {
+        Path path = ModelFile.defaultPath(geometry);
+        if (Files.exists(path)) {
+            try {
+                return ModelFile.load(geometry, path);
+            } catch (IOException e) {
+                System.err.println("Could not load AI model: " + e.getMessage());
+            }
+        }
+        AveragingModelEngine engine = new AveragingModelEngine(geometry);
+        try {
+            engine.save(path);
+            return ModelFile.load(geometry, path);
+        } catch (IOException e) {
+            System.err.println("Could not save AI model: " + e.getMessage());
+            return ModelFile.of(engine.getModel(), geometry);
+        }
+    }
+}
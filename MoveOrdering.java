@@ -0,0 +1,156 @@
+import java.util.EnumSet;
+import java.util.Set;
+
+// MoveOrdering orders the columns searched at every node of NegamaxEngine, best
+// first. Alpha-beta pruning only cuts off the columns after the one that beats
+// beta, so the earlier the best column is tried, the fewer nodes are visited.
+//
+// Columns start out center-first, which is where the strong moves usually are,
+// and are then sorted by the enabled heuristics:
+// - THREATS: the number of open lines of winCondition - 1 tokens the player to
+// move has after playing the column, see Position.threatCount.
+// - KILLERS: the last two columns that caused a cut-off at the same ply. Sibling
+// positions tend to be refuted by the same move.
+// - HISTORY: how often and how deep playing a token into a cell caused a cut-off,
+// for each player. Unlike killers it carries over between plies.
+//
+// The sort is an insertion sort that keeps the center-first order between columns
+// with the same score, and every ply has its own buffers, so ordering a node
+// doesn't allocate.
+public class MoveOrdering {
+    public enum Heuristic {
+        THREATS,
+        KILLERS,
+        HISTORY,
+    }
+
+    // Scores of the heuristics are packed into one int: threats take the highest
+    // bits, then the killer rank, then the history score
+    private static final int THREAT_SHIFT = 22;
+    private static final int KILLER_SHIFT = 20;
+    private static final int MAX_HISTORY = (1 << KILLER_SHIFT) - 1;
+    // Number of killer columns kept per ply
+    private static final int KILLERS_PER_PLY = 2;
+
+    private final int cols;
+    private final int rows;
+    private final int[] columnOrder;
+    private final boolean threats;
+    private final boolean killers;
+    private final boolean history;
+
+    // moves[ply] and scores[ply] hold the ordered columns of the node at ply and
+    // their scores
+    private final int[][] moves;
+    private final int[][] scores;
+    // killerMoves[ply * KILLERS_PER_PLY + i] is the i-th killer column at ply, or
+    // -1 if there is none
+    private final int[] killerMoves;
+    // historyScores[player][col * rows + row] is the history score of placing a
+    // token in the cell, player being the parity of the number of moves played
+    private final int[][] historyScores;
+
+    // Creates an ordering with the default heuristics, threats and history.
+    // Killers are left out since they made the search visit more nodes: a column
+    // that refutes one sibling is often a forced block that is a poor move in the
+    // next one
+    public MoveOrdering(Geometry geometry) {
+        this(geometry, EnumSet.of(Heuristic.THREATS, Heuristic.HISTORY));
+    }
+
+    // Creates an ordering that uses the given heuristics. With no heuristics the
+    // columns are searched center-first
+    public MoveOrdering(Geometry geometry, Set<Heuristic> heuristics) {
+        this.cols = geometry.cols();
+        this.rows = geometry.rows();
+        this.columnOrder = new int[this.cols];
+        for (int i = 0; i < this.cols; i++) {
+            this.columnOrder[i] = geometry.columnOrder(i);
+        }
+        this.threats = heuristics.contains(Heuristic.THREATS);
+        this.killers = heuristics.contains(Heuristic.KILLERS);
+        this.history = heuristics.contains(Heuristic.HISTORY);
+        this.moves = new int[geometry.cells() + 1][this.cols];
+        this.scores = new int[geometry.cells() + 1][this.cols];
+        this.killerMoves = new int[(geometry.cells() + 1) * KILLERS_PER_PLY];
+        this.historyScores = new int[2][geometry.cells()];
+        clear();
+    }
+
+    // clear forgets the killer columns and history scores, e.g. before searching a
+    // new position
+    public void clear() {
+        for (int i = 0; i < this.killerMoves.length; i++) {
+            this.killerMoves[i] = -1;
+        }
+        for (int[] scores : this.historyScores) {
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = 0;
+            }
+        }
+    }
+
+    // sort orders the playable columns of position and returns how many there
+    // are. The i-th column is read with move(position.moves(), i)
+    public int sort(Position position) {
+        int ply = position.moves();
+        int[] moves = this.moves[ply];
+        int[] scores = this.scores[ply];
+        int count = 0;
+        for (int i = 0; i < this.cols; i++) {
+            int col = this.columnOrder[i];
+            if (!position.canPlay(col)) {
+                continue;
+            }
+            int score = 0;
+            if (this.threats) {
+                score += position.threatCount(col) << THREAT_SHIFT;
+            }
+            if (this.killers) {
+                for (int k = 0; k < KILLERS_PER_PLY; k++) {
+                    if (this.killerMoves[ply * KILLERS_PER_PLY + k] == col) {
+                        score += (KILLERS_PER_PLY - k) << KILLER_SHIFT;
+                        break;
+                    }
+                }
+            }
+            if (this.history) {
+                score += this.historyScores[ply & 1][col * this.rows + position.height(col)];
+            }
+            // Insert after the columns with the same or a higher score
+            int j = count++;
+            while (j > 0 && scores[j - 1] < score) {
+                moves[j] = moves[j - 1];
+                scores[j] = scores[j - 1];
+                j--;
+            }
+            moves[j] = col;
+            scores[j] = score;
+        }
+        return count;
+    }
+
+    // move returns the i-th column of the last sort at ply
+    public int move(int ply, int i) {
+        return this.moves[ply][i];
+    }
+
+    // cutoff records that playing col in position caused a beta cut-off with depth
+    // plies left to search
+    public void cutoff(Position position, int col, int depth) {
+        int ply = position.moves();
+        if (this.killers) {
+            int first = ply * KILLERS_PER_PLY;
+            if (this.killerMoves[first] != col) {
+                this.killerMoves[first + 1] = this.killerMoves[first];
+                this.killerMoves[first] = col;
+            }
+        }
+        if (this.history) {
+            int cell = col * this.rows + position.height(col);
+            int[] scores = this.historyScores[ply & 1];
+            // Deeper cut-offs saved more work, so they count more
+            scores[cell] = Math.min(MAX_HISTORY, scores[cell] + depth * depth);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+// NegamaxEngine searches the game tree from the current board with alpha-beta
+// pruning instead of solving the whole tree up front. Columns are tried in the
+// order of a MoveOrdering, and the search deepens one ply at a time so that the
+// best move of the last completed depth is tried first on the next one.
+//
+// Scores follow the usual negamax convention from the perspective of the player
+// to move: winning with the n-th move of the game scores (cells + 1 - n) / 2 so
+// that faster wins score higher, losing scores the negation and a draw scores 0.
+// Positions at the depth limit are scored by an Evaluator. Game results are
+// multiplied by SCORE_UNIT, which is above any evaluation, so a search prefers
+// any win over any evaluation and a score is proven exactly when it is at least
+// SCORE_UNIT away from 0.
+//
+// With a time budget the engine is an anytime search: it keeps deepening until
+// the budget runs out, abandons the depth it is in and returns the best move of
+// the last completed depth. isProven tells whether that move is backed by the
+// end of the game or only by a search that stopped early.
+//
+// The root searches the columns after the best one with alpha - 1 as the lower
+// bound, which only shows that a column is no better, so the scores of those
+// columns may be upper bounds and only the score of the chosen column is exact.
+// Scores are mapped to [0, 1] as (value + maxScore) / (2 * maxScore). From 63
+// cells on, e.g. 9x7, 2 * maxScore exceeds the 16 bit precision scores are
+// stored with in a TranspositionTable or ModelFile, so storing a score may merge
+// evaluations that differ by a point or two. Game results are SCORE_UNIT apart
+// and always stay distinct.
+public class NegamaxEngine implements SearchEngine {
+    // Default number of plies searched from the current board
+    public static final int DEFAULT_MAX_DEPTH = 12;
+    // The clock is read once every this many nodes, which is frequent enough to
+    // stop well within a millisecond of the deadline. Must be a power of two
+    private static final int DEADLINE_CHECK_INTERVAL = 1024;
+    // Unit of the scores of finished games, see the class comment
+    private static final int SCORE_UNIT = Evaluator.MAX_VALUE + 1;
+    // Board the engine plays on
+    private final Geometry geometry;
+    private final int cols;
+    private final int cells;
+    // maxScore is the score of winning with the first move of the game
+    private final int maxScore;
+    // ordering orders the columns of every node
+    private final MoveOrdering ordering;
+    // evaluator scores the positions at the depth limit
+    private final Evaluator evaluator;
+    // Maximum number of plies searched from the current board
+    private int maxDepth;
+    // Time chooseCol may take in nanoseconds, 0 for no limit
+    private long timeBudget;
+    // deadline is the System.nanoTime at which the current search stops
+    private long deadline;
+    // checkDeadline is set once the first depth completed, so that there is always
+    // a move to return. stopped is set once the deadline passed and unwinds the
+    // search
+    private boolean checkDeadline;
+    private boolean stopped;
+    // rootOrder is the column order of the root, which is reordered after every
+    // depth so that the best column so far is searched first
+    private int[] rootOrder;
+    // rootValues stores the score of each root column from the last depth
+    private int[] rootValues;
+    // Number of nodes visited by the last call to chooseCol
+    private long nodeCount;
+    // Last depth that the last call to chooseCol completed
+    private int depth;
+    // Whether the last call to chooseCol proved its result, see isProven
+    private boolean proven;
+    // Number of beta cut-offs in the last call to chooseCol, and how many of them
+    // came from the first column searched. The closer the two are, the better the
+    // move ordering
+    private long cutoffCount;
+    private long firstMoveCutoffCount;
+
+    public NegamaxEngine() {
+        this(Geometry.DEFAULT);
+    }
+
+    public NegamaxEngine(Geometry geometry) {
+        this(geometry, DEFAULT_MAX_DEPTH);
+    }
+
+    public NegamaxEngine(Geometry geometry, int maxDepth) {
+        this(geometry, maxDepth, new MoveOrdering(geometry), new WindowEvaluator(geometry));
+    }
+
+    // Creates an engine that orders columns with ordering, which must be for the
+    // same board and can't be shared with other engines, and scores the positions
+    // at the depth limit with evaluator. Pass Evaluator.NONE to score them as
+    // draws
+    public NegamaxEngine(Geometry geometry, int maxDepth, MoveOrdering ordering, Evaluator evaluator) {
+        this.geometry = geometry;
+        this.cols = geometry.cols();
+        this.cells = geometry.cells();
+        this.maxScore = winScore(0);
+        this.ordering = ordering;
+        this.evaluator = evaluator;
+        this.maxDepth = maxDepth;
+        this.rootOrder = new int[this.cols];
+        this.rootValues = new int[this.cols];
+    }
+
+    @Override
+    public Geometry getGeometry() {
+        return this.geometry;
+    }
+
+    public long getNodeCount() {
+        return this.nodeCount;
+    }
+
+    public long getTimeBudget() {
+        return this.timeBudget;
+    }
+
+    // setTimeBudget limits the time of every call to chooseCol to nanos, or removes
+    // the limit if nanos is 0. The search still stops at the maximum depth, so set
+    // a high one to use the whole budget. The first depth always completes, which
+    // takes a few microseconds
+    public void setTimeBudget(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("time budget must not be negative");
+        }
+        this.timeBudget = nanos;
+    }
+
+    // isProven returns whether the last call to chooseCol found a forced win or
+    // loss, or searched to the end of the game, so that the score of the chosen
+    // column is exact. The scores of the other columns may still be upper bounds,
+    // see the class comment. Otherwise the scores only cover the last completed
+    // depth
+    @Override
+    public boolean isProven() {
+        return this.proven;
+    }
+
+    public int getDepth() {
+        return this.depth;
+    }
+
+    public long getCutoffCount() {
+        return this.cutoffCount;
+    }
+
+    public long getFirstMoveCutoffCount() {
+        return this.firstMoveCutoffCount;
+    }
+
+    @Override
+    public int chooseCol(Position position, double[] scores) {
+        this.nodeCount = 0;
+        this.depth = 0;
+        this.proven = false;
+        this.deadline = System.nanoTime() + this.timeBudget;
+        this.checkDeadline = false;
+        this.stopped = false;
+        this.cutoffCount = 0;
+        this.firstMoveCutoffCount = 0;
+        int moves = position.moves();
+        for (int col = 0; col < this.cols; col++) {
+            scores[col] = TranspositionTable.NO_SCORE;
+        }
+        // Killers and history of the last position don't apply to this one
+        this.ordering.clear();
+        int rootCount = this.ordering.sort(position);
+        for (int i = 0; i < rootCount; i++) {
+            this.rootOrder[i] = this.ordering.move(moves, i);
+        }
+        int bestCol = -1;
+        // Iterative deepening: search one ply deeper each time until we either reach
+        // the depth limit, the end of the game or a proven result
+        int depthLimit = Math.min(this.maxDepth, this.cells - moves);
+        for (int depth = 1; depth <= depthLimit; depth++) {
+            int alpha = -this.maxScore;
+            int beta = this.maxScore;
+            int depthBestCol = -1;
+            for (int i = 0; i < rootCount; i++) {
+                int col = this.rootOrder[i];
+                int value;
+                if (position.isWinningMove(col)) {
+                    value = winScore(moves);
+                } else {
+                    // Search with alpha - 1 as the lower bound so that a column that
+                    // doesn't beat alpha either ties it exactly or gets an upper bound
+                    // below it. Picking the highest score then never picks a column
+                    // that was cut off over the best one
+                    position.play(col);
+                    value = -negamax(position, depth - 1, -beta, -(alpha - 1));
+                    position.undo(col);
+                }
+                if (this.stopped) {
+                    break;
+                }
+                this.rootValues[col] = value;
+                if (depthBestCol == -1 || value > alpha) {
+                    alpha = Math.max(alpha, value);
+                    depthBestCol = col;
+                }
+            }
+            // The deadline passed during this depth, so its values are incomplete and
+            // the scores of the last depth stand
+            if (this.stopped) {
+                break;
+            }
+            bestCol = depthBestCol;
+            this.depth = depth;
+            this.checkDeadline = this.timeBudget > 0;
+            for (int col = 0; col < this.cols; col++) {
+                if (position.canPlay(col)) {
+                    scores[col] = (double) (this.rootValues[col] + this.maxScore) / (2 * this.maxScore);
+                }
+            }
+            // A score of at least SCORE_UNIT can only come from the end of a game, so
+            // the result is proven and searching deeper won't change it. Otherwise
+            // the result is proven once the search reached the end of the game
+            this.proven = Math.abs(alpha) >= SCORE_UNIT || depth == this.cells - moves;
+            if (Math.abs(alpha) >= SCORE_UNIT) {
+                break;
+            }
+            moveToFront(this.rootOrder, bestCol);
+        }
+        return bestCol;
+    }
+
+    // The search has no transposition table, so only nodes and depth are recorded
+    @Override
+    public void recordSearch(SearchMetrics metrics, long nanos) {
+        metrics.record(nanos, this.nodeCount, this.depth, 0, 0, 0);
+    }
+
+    private int negamax(Position position, int depth, int alpha, int beta) {
+        this.nodeCount++;
+        if (this.checkDeadline && (this.nodeCount & (DEADLINE_CHECK_INTERVAL - 1)) == 0
+                && System.nanoTime() - this.deadline >= 0) {
+            this.stopped = true;
+        }
+        // The value doesn't matter, chooseCol throws away the depth
+        if (this.stopped) {
+            return 0;
+        }
+        int moves = position.moves();
+        // The board is full, so the game is a draw
+        if (moves == this.cells) {
+            return 0;
+        }
+        // Check if we can win with the next move
+        if (position.canWinNext()) {
+            return winScore(moves);
+        }
+        if (depth == 0) {
+            return this.evaluator.evaluate(position);
+        }
+        // We can't win with the next move, so the best we can do is win with the
+        // move after that
+        int max = winScore(moves + 2);
+        if (beta > max) {
+            beta = max;
+            if (alpha >= beta) {
+                return beta;
+            }
+        }
+        int count = this.ordering.sort(position);
+        for (int i = 0; i < count; i++) {
+            int col = this.ordering.move(moves, i);
+            position.play(col);
+            int value = -negamax(position, depth - 1, -beta, -alpha);
+            position.undo(col);
+            // Don't let the values of an abandoned search update the ordering
+            if (this.stopped) {
+                return 0;
+            }
+            if (value >= beta) {
+                this.ordering.cutoff(position, col, depth);
+                this.cutoffCount++;
+                if (i == 0) {
+                    this.firstMoveCutoffCount++;
+                }
+                return value;
+            }
+            if (value > alpha) {
+                alpha = value;
+            }
+        }
+        return alpha;
+    }
+
+    // winScore returns the score of winning with the next move when moves moves
+    // were played
+    private int winScore(int moves) {
+        return (this.cells + 1 - moves) / 2 * SCORE_UNIT;
+    }
+
+    private static void moveToFront(int[] order, int col) {
+        int i = 0;
+        while (order[i] != col) {
+            i++;
+        }
+        System.arraycopy(order, 0, order, 1, i);
+        order[0] = col;
+    }
+}
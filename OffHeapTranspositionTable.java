@@ -0,0 +1,416 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+// OffHeapTranspositionTable is a bounded, concurrent TranspositionTable whose
+// entries live outside the Java heap, in direct or memory mapped buffers. The
+// garbage collector never scans or copies the entries, so a table of many GB adds
+// nothing to GC pauses or to the heap the JVM needs, and a file backed table
+// survives the process.
+//
+// Entries are grouped in buckets of two slots with the same depth-preferred and
+// always-replace policy as a bounded TranspositionTable. A bucket is padded to a
+// power of two bytes, so a bucket of up to 9 columns fills exactly one cache line
+// and a lookup touches one line. A buffer can't be larger than 2 GB, so buckets
+// are spread over chunks of CHUNK_BYTES, and bucket indexes are longs, so a table
+// can hold far more than 2^31 entries.
+//
+// Threads don't lock. Every bucket starts with a version that is odd while a
+// writer changes the bucket: writers take a bucket by compare-and-set of an even
+// version to the next odd one and release it with the next even one, readers
+// read the bucket and retry if the version changed meanwhile. The version is read
+// and written through a VarHandle with acquire and release semantics.
+//
+// Bucket layout, in the native byte order:
+//
+//   long version
+//   long key + 1 of slot 0 and 1, 0 marks an empty slot
+//   byte depth of slot 0 and 1
+//   char[width] scores of slot 0 and 1
+public final class OffHeapTranspositionTable extends TranspositionTable {
+    // Chunks are 1 GB. Must be a power of two
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_BYTES = 1L << CHUNK_BITS;
+    // Bytes before the buckets of a file backed table, one page so that buckets
+    // stay aligned
+    private static final int FILE_HEADER_BYTES = 4096;
+    private static final long FILE_MAGIC = 0x4334545441424c45L;
+    private static final int VERSION = 0;
+    private static final int KEYS = Long.BYTES;
+    private static final int DEPTHS = 3 * Long.BYTES;
+    private static final int VALUES = DEPTHS + 2;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private final ByteBuffer[] chunks;
+    // bucketBits is log2 of the bytes of a bucket
+    private final int bucketBits;
+    private final long buckets;
+    // file is the mapped file of a file backed table, null otherwise
+    private final FileChannel file;
+
+    private final LongAdder size = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder collisions = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private OffHeapTranspositionTable(int width, long maxBytes, FileChannel file) throws IOException {
+        super(width);
+        this.bucketBits = bucketBits(width);
+        this.buckets = buckets(width, maxBytes);
+        long bytes = this.buckets << this.bucketBits;
+        this.chunks = new ByteBuffer[(int) ((bytes + CHUNK_BYTES - 1) >> CHUNK_BITS)];
+        this.file = file;
+        for (int i = 0; i < this.chunks.length; i++) {
+            int chunkBytes = (int) Math.min(CHUNK_BYTES, bytes - ((long) i << CHUNK_BITS));
+            ByteBuffer chunk = file == null ? ByteBuffer.allocateDirect(chunkBytes)
+                    : file.map(FileChannel.MapMode.READ_WRITE, FILE_HEADER_BYTES + ((long) i << CHUNK_BITS), chunkBytes);
+            this.chunks[i] = chunk.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    // allocate creates a table that uses at most maxBytes of memory outside the heap.
+    // The buffers count against the direct memory limit of the JVM, which is the
+    // maximum heap size unless -XX:MaxDirectMemorySize sets it, so a table larger
+    // than the heap needs that option. Tables mapped from a file with map aren't
+    // limited by it
+    public static OffHeapTranspositionTable allocate(int width, long maxBytes) {
+        try {
+            return new OffHeapTranspositionTable(width, maxBytes, null);
+        } catch (IOException e) {
+            // Only mapping a file can fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // map creates a table backed by the file at path, which uses at most maxBytes.
+    // Entries written to the table are written to the file, so a table mapped from
+    // the same file again, with the same width and maxBytes, has the entries of the
+    // last one. Opening an existing file reads all of it, to count the entries and
+    // to empty the buckets that a process died writing to
+    public static OffHeapTranspositionTable map(int width, long maxBytes, Path path) throws IOException {
+        long buckets = buckets(width, maxBytes);
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            boolean exists = file.size() > 0;
+            // Check the header before mapping the buckets, which would grow a file
+            // of another layout
+            if (exists) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+                file.read(header, 0);
+                if (file.size() != FILE_HEADER_BYTES + (buckets << bucketBits(width))
+                        || header.getLong(0) != FILE_MAGIC || header.getInt(8) != width
+                        || header.getLong(12) != buckets) {
+                    throw new IOException("table file " + path + " has another layout");
+                }
+            }
+            OffHeapTranspositionTable table = new OffHeapTranspositionTable(width, maxBytes, file);
+            if (exists) {
+                table.size.add(table.recover());
+            } else {
+                MappedByteBuffer header = file.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_BYTES);
+                header.putLong(0, FILE_MAGIC);
+                header.putInt(8, width);
+                header.putLong(12, buckets);
+            }
+            return table;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // flush writes the changes of a file backed table to disk
+    public void flush() {
+        if (this.file == null) {
+            return;
+        }
+        for (ByteBuffer chunk : this.chunks) {
+            ((MappedByteBuffer) chunk).force();
+        }
+    }
+
+    @Override
+    public boolean isBounded() {
+        return true;
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    @Override
+    public long size() {
+        return this.size.sum();
+    }
+
+    @Override
+    public long capacity() {
+        return this.buckets * 2;
+    }
+
+    @Override
+    public long memoryBytes() {
+        return this.buckets << this.bucketBits;
+    }
+
+    @Override
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    @Override
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    @Override
+    public long collisions() {
+        return this.collisions.sum();
+    }
+
+    @Override
+    public long evictions() {
+        return this.evictions.sum();
+    }
+
+    // get copies the scores stored for key into scores and returns whether the key
+    // was found. scores may be changed even if the key isn't found, when a writer
+    // replaced the entry during the lookup
+    @Override
+    public boolean get(long key, double[] scores) {
+        long bucket = bucket(key);
+        ByteBuffer chunk = chunk(bucket);
+        int offset = offset(bucket);
+        while (true) {
+            long version = readVersion(chunk, offset);
+            int slot = findSlot(chunk, offset, key);
+            if (slot >= 0) {
+                int values = offset + VALUES + slot * width() * Character.BYTES;
+                for (int i = 0; i < width(); i++) {
+                    scores[i] = dequantize(chunk.getChar(values + i * Character.BYTES));
+                }
+            }
+            if (!validate(chunk, offset, version)) {
+                continue;
+            }
+            if (slot < 0) {
+                if (chunk.getLong(offset + KEYS) != 0) {
+                    this.collisions.increment();
+                }
+                this.misses.increment();
+                return false;
+            }
+            this.hits.increment();
+            return true;
+        }
+    }
+
+    @Override
+    public void put(long key, int depth, double[] scores) {
+        long bucket = bucket(key);
+        ByteBuffer chunk = chunk(bucket);
+        int offset = offset(bucket);
+        long version = lock(chunk, offset);
+        try {
+            int slot = replaceSlot(chunk, offset, key, depth);
+            int values = offset + VALUES + slot * width() * Character.BYTES;
+            for (int i = 0; i < width(); i++) {
+                chunk.putChar(values + i * Character.BYTES, quantize(scores[i]));
+            }
+        } finally {
+            LONGS.setRelease(chunk, offset + VERSION, version + 2);
+        }
+    }
+
+    @Override
+    public boolean contains(long key) {
+        long bucket = bucket(key);
+        ByteBuffer chunk = chunk(bucket);
+        int offset = offset(bucket);
+        while (true) {
+            long version = readVersion(chunk, offset);
+            int slot = findSlot(chunk, offset, key);
+            if (validate(chunk, offset, version)) {
+                return slot >= 0;
+            }
+        }
+    }
+
+    @Override
+    long[] keys() {
+        long size = size();
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("table has too many entries for an array: " + size);
+        }
+        long[] keys = new long[(int) size];
+        int count = 0;
+        for (long bucket = 0; bucket < this.buckets; bucket++) {
+            ByteBuffer chunk = chunk(bucket);
+            int offset = offset(bucket);
+            for (int slot = 0; slot < 2; slot++) {
+                long slotKey = chunk.getLong(offset + KEYS + slot * Long.BYTES);
+                if (slotKey != 0) {
+                    keys[count++] = slotKey - 1;
+                }
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    boolean getQuantized(long key, char[] values) {
+        long bucket = bucket(key);
+        ByteBuffer chunk = chunk(bucket);
+        int offset = offset(bucket);
+        int slot = findSlot(chunk, offset, key);
+        if (slot < 0) {
+            return false;
+        }
+        int start = offset + VALUES + slot * width() * Character.BYTES;
+        for (int i = 0; i < width(); i++) {
+            values[i] = chunk.getChar(start + i * Character.BYTES);
+        }
+        return true;
+    }
+
+    // replaceSlot returns the slot of key in the locked bucket at offset, making
+    // room for it like TranspositionTable.replaceBucketSlot
+    private int replaceSlot(ByteBuffer chunk, int offset, long key, int depth) {
+        long first = chunk.getLong(offset + KEYS);
+        long second = chunk.getLong(offset + KEYS + Long.BYTES);
+        if (first == key + 1) {
+            chunk.put(offset + DEPTHS, (byte) Math.max(chunk.get(offset + DEPTHS), depth));
+            return 0;
+        }
+        if (second == key + 1) {
+            chunk.put(offset + DEPTHS + 1, (byte) depth);
+            return 1;
+        }
+        int slot = 1;
+        if (first == 0 || depth >= chunk.get(offset + DEPTHS)) {
+            // Demote the depth-preferred entry to the always-replace slot
+            if (first != 0) {
+                if (second != 0) {
+                    this.evictions.increment();
+                } else {
+                    this.size.increment();
+                }
+                chunk.putLong(offset + KEYS + Long.BYTES, first);
+                chunk.put(offset + DEPTHS + 1, chunk.get(offset + DEPTHS));
+                int values = offset + VALUES;
+                for (int i = 0; i < width(); i++) {
+                    int position = values + i * Character.BYTES;
+                    chunk.putChar(position + width() * Character.BYTES, chunk.getChar(position));
+                }
+            } else {
+                this.size.increment();
+            }
+            slot = 0;
+        } else if (second != 0) {
+            this.evictions.increment();
+        } else {
+            this.size.increment();
+        }
+        chunk.putLong(offset + KEYS + slot * Long.BYTES, key + 1);
+        chunk.put(offset + DEPTHS + slot, (byte) depth);
+        return slot;
+    }
+
+    // findSlot returns the slot of the bucket at offset holding key, or -1
+    private static int findSlot(ByteBuffer chunk, int offset, long key) {
+        if (chunk.getLong(offset + KEYS) == key + 1) {
+            return 0;
+        }
+        if (chunk.getLong(offset + KEYS + Long.BYTES) == key + 1) {
+            return 1;
+        }
+        return -1;
+    }
+
+    // readVersion waits until no writer holds the bucket at offset and returns its
+    // version
+    private static long readVersion(ByteBuffer chunk, int offset) {
+        while (true) {
+            long version = (long) LONGS.getAcquire(chunk, offset + VERSION);
+            if ((version & 1) == 0) {
+                return version;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // validate returns whether the bucket at offset still has version, i.e. no
+    // writer changed it since the reads that came before
+    private static boolean validate(ByteBuffer chunk, int offset, long version) {
+        VarHandle.loadLoadFence();
+        return (long) LONGS.getAcquire(chunk, offset + VERSION) == version;
+    }
+
+    // lock takes the bucket at offset for writing and returns its version before
+    private static long lock(ByteBuffer chunk, int offset) {
+        while (true) {
+            long version = readVersion(chunk, offset);
+            if (LONGS.compareAndSet(chunk, offset + VERSION, version, version + 1)) {
+                return version;
+            }
+        }
+    }
+
+    // recover counts the occupied slots of every bucket of a table mapped from an
+    // existing file. A bucket whose version is odd was being written when the
+    // process that wrote the file died, so its entries may be torn and nothing
+    // would ever unlock it. Such buckets are emptied and unlocked
+    private long recover() {
+        long count = 0;
+        for (long bucket = 0; bucket < this.buckets; bucket++) {
+            ByteBuffer chunk = chunk(bucket);
+            int offset = offset(bucket);
+            long version = chunk.getLong(offset + VERSION);
+            if ((version & 1) != 0) {
+                chunk.putLong(offset + KEYS, 0);
+                chunk.putLong(offset + KEYS + Long.BYTES, 0);
+                chunk.putLong(offset + VERSION, version + 1);
+            }
+            count += (chunk.getLong(offset + KEYS) != 0 ? 1 : 0) + (chunk.getLong(offset + KEYS + Long.BYTES) != 0 ? 1 : 0);
+        }
+        return count;
+    }
+
+    // bucketBits returns log2 of the bytes of a bucket of width columns
+    private static int bucketBits(int width) {
+        return 64 - Long.numberOfLeadingZeros(VALUES + 2L * width * Character.BYTES - 1);
+    }
+
+    // buckets returns the number of buckets of a table of width columns that uses
+    // at most maxBytes, rounded down to a power of two so that we can mask the hash
+    private static long buckets(int width, long maxBytes) {
+        long buckets = maxBytes >> bucketBits(width);
+        if (buckets < 1) {
+            throw new IllegalArgumentException("maxBytes is too small for a single bucket");
+        }
+        return Long.highestOneBit(buckets);
+    }
+
+    private long bucket(long key) {
+        return mix(key) & (this.buckets - 1);
+    }
+
+    private ByteBuffer chunk(long bucket) {
+        return this.chunks[(int) ((bucket << this.bucketBits) >>> CHUNK_BITS)];
+    }
+
+    private int offset(long bucket) {
+        return (int) ((bucket << this.bucketBits) & (CHUNK_BYTES - 1));
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+
+// OpeningBook stores the scores of every position in the first plies of the game,
+// so that the opening moves, which need the deepest searches, become a lookup.
+// The book is a ModelFile keyed by the canonical position key, so a position and
+// its mirror image share an entry. Positions that aren't in the book are passed on
+// to a fallback engine.
+public class OpeningBook implements SearchEngine {
+    // Initial capacity of the table the book is built in
+    private static final int BOOK_CAPACITY = 1 << 16;
+
+    private final ModelFile book;
+    // Engine for the positions that aren't in the book
+    private final SearchEngine fallback;
+    // Whether the last call to chooseCol was answered by the book
+    private boolean bookHit;
+
+    public OpeningBook(ModelFile book, SearchEngine fallback) {
+        this.book = book;
+        this.fallback = fallback;
+    }
+
+    // load creates an opening book from the file at path
+    public static OpeningBook load(Path path, SearchEngine fallback) throws IOException {
+        return new OpeningBook(ModelFile.load(fallback.getGeometry(), path), fallback);
+    }
+
+    public long size() {
+        return this.book.size();
+    }
+
+    @Override
+    public Geometry getGeometry() {
+        return this.fallback.getGeometry();
+    }
+
+    @Override
+    public int chooseCol(Position position, double[] scores) {
+        this.bookHit = this.book.get(position.canonicalKey(), scores);
+        if (!this.bookHit) {
+            return this.fallback.chooseCol(position, scores);
+        }
+        if (position.isMirrored()) {
+            Position.mirror(scores);
+        }
+        // Choose the column with max score. Ties go to the column closest to the
+        // center. A NegamaxEngine breaks ties in the order of its MoveOrdering
+        // instead, so the book may choose a different column of the same score
+        // than a search of the position would
+        double bestScore = TranspositionTable.NO_SCORE;
+        int bestScoreIndex = 0;
+        Geometry geometry = getGeometry();
+        for (int i = 0; i < geometry.cols(); i++) {
+            int col = geometry.columnOrder(i);
+            if (scores[col] > bestScore) {
+                bestScore = scores[col];
+                bestScoreIndex = col;
+            }
+        }
+        return bestScoreIndex;
+    }
+
+    // Book entries don't record how deep they were searched, so only the fallback
+    // can prove its scores
+    @Override
+    public boolean isProven() {
+        return !this.bookHit && this.fallback.isProven();
+    }
+
+    @Override
+    public void recordSearch(SearchMetrics metrics, long nanos) {
+        if (this.bookHit) {
+            metrics.record(nanos, 1, 0, 1, 0, 0);
+        } else {
+            this.fallback.recordSearch(metrics, nanos);
+        }
+    }
+
+    // build scores every position of the first depth plies with engine and writes
+    // the book to path
+    public static void build(SearchEngine engine, int depth, Path path) throws IOException {
+        Geometry geometry = engine.getGeometry();
+        TranspositionTable book = new TranspositionTable(geometry.cols(), BOOK_CAPACITY);
+        double[] scores = new double[geometry.cols()];
+        addPositions(geometry.newPosition(), depth, engine, book, scores);
+        ModelFile.write(book, geometry, path);
+    }
+
+    // addPositions adds position and every position reachable from it in fewer
+    // than depth plies to the book
+    private static void addPositions(Position position, int depth, SearchEngine engine, TranspositionTable book,
+            double[] scores) {
+        if (depth == 0 || book.contains(position.canonicalKey())) {
+            return;
+        }
+        engine.chooseCol(position, scores);
+        if (position.isMirrored()) {
+            Position.mirror(scores);
+        }
+        book.put(position.canonicalKey(), depth, scores);
+        for (int col = 0; col < scores.length; col++) {
+            // Positions after a winning move are over, so they never need a move
+            if (!position.canPlay(col) || position.isWinningMove(col)) {
+                continue;
+            }
+            position.play(col);
+            addPositions(position, depth - 1, engine, book, scores);
+            position.undo(col);
+        }
+    }
+
+    // main builds an opening book with a NegamaxEngine
+    // Usage: java OpeningBook <book depth> <search depth> <path> [rows cols [win]]
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 && args.length != 5 && args.length != 6) {
+            System.err.println("Usage: java OpeningBook <book depth> <search depth> <path> [rows cols [win]]");
+            System.exit(1);
+        }
+        int depth = Integer.parseInt(args[0]);
+        Geometry geometry = Geometry.DEFAULT;
+        if (args.length > 3) {
+            geometry = new Geometry(Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                    args.length > 5 ? Integer.parseInt(args[5]) : Geometry.DEFAULT.winCondition());
+        }
+        NegamaxEngine engine = new NegamaxEngine(geometry, Integer.parseInt(args[1]));
+        Path path = Paths.get(args[2]);
+
+        System.out.println("Building opening book...");
+        Instant start = Instant.now();
+        build(engine, depth, path);
+        Instant end = Instant.now();
+        System.out.println("Method duration: " + Duration.between(start, end).toString());
+        System.out.println("Positions: " + ModelFile.load(geometry, path).size());
+    }
+}
@@ -0,0 +1,116 @@
+// Position encodes a board with bitboards, the layout used by most bitboard
+// Connect 4 solvers. Each column takes ROWS + 1 bits, bit 0 of a column being its
+// bottom row. The extra bit is a sentinel row that always stays empty, so that
+// shifting a bitboard never carries tokens from one column into the next. For a
+// 4x5 board the bits are laid out as follows:
+//
+//  4  9 14 19 24   <- sentinel row
+//  3  8 13 18 23
+//  2  7 12 17 22
+//  1  6 11 16 21
+//  0  5 10 15 20
+//
+// One bitboard holds the tokens of the player to move and another the tokens of
+// both players. Playing a move flips the player to move with a single xor, so
+// nothing needs to be inverted between plies.
+//
+// The representation is picked per board by Geometry.newPosition: LongPosition
+// keeps a bitboard in a single long, WidePosition spreads it over two longs for
+// the boards that don't fit. Both are final and a process plays on one board, so
+// the calls the search makes through Position only ever see one of them and are
+// inlined by the JIT.
+public abstract class Position {
+    protected final Geometry geometry;
+    // Number of tokens played
+    protected int moves;
+
+    protected Position(Geometry geometry, int moves) {
+        this.geometry = geometry;
+        this.moves = moves;
+    }
+
+    // fromTokens creates the position of a board where player is the player to move
+    public static Position fromTokens(Geometry geometry, Board.Token[][] board, Board.Token player) {
+        Position position = geometry.newPosition();
+        for (int col = 0; col < geometry.cols(); col++) {
+            for (int row = 0; row < geometry.rows() && board[row][col] != Board.Token.EMPTY; row++) {
+                position.addToken(col, board[row][col] == player);
+            }
+        }
+        return position;
+    }
+
+    // copy returns a position that can be played independently of this one
+    public abstract Position copy();
+
+    // reset empties the board, so that one position can be reused for many games
+    public abstract void reset();
+
+    public Geometry geometry() {
+        return this.geometry;
+    }
+
+    public int moves() {
+        return this.moves;
+    }
+
+    // key returns a key for the position. Adding the tokens of both players to the
+    // tokens of the player to move sets the bit above the top token of every
+    // column, which encodes the column heights without needing more bits than the
+    // board has
+    public abstract long key();
+
+    // mirrorKey returns the key of the position mirrored left to right
+    public abstract long mirrorKey();
+
+    // canonicalKey returns the same key for the position and its mirror image,
+    // which is the smaller of the two keys. Scores stored under the canonical key
+    // are in the column order of the mirror image when isMirrored is true
+    public long canonicalKey() {
+        return Math.min(key(), mirrorKey());
+    }
+
+    // isMirrored returns whether canonicalKey is the key of the mirror image
+    public boolean isMirrored() {
+        return mirrorKey() < key();
+    }
+
+    public abstract boolean canPlay(int col);
+
+    public abstract int height(int col);
+
+    // play places a token of the player to move in col, which must be playable
+    public abstract void play(int col);
+
+    // undo removes the last token played in col
+    public abstract void undo(int col);
+
+    public abstract boolean isWinningMove(int col);
+
+    // canWinNext returns whether the player to move wins with any playable column
+    public abstract boolean canWinNext();
+
+    // threatCount returns the number of empty cells that would complete a line of
+    // the player to move after they play col, i.e. the open lines of
+    // winCondition - 1 tokens they have after the move. col must be playable
+    public abstract int threatCount(int col);
+
+    // isOccupied returns whether there is a token in the cell
+    public abstract boolean isOccupied(int row, int col);
+
+    // isCurrent returns whether the cell holds a token of the player to move
+    public abstract boolean isCurrent(int row, int col);
+
+    // addToken places a token on top of col without changing the player to move.
+    // It is used to build positions that weren't reached by playing moves
+    protected abstract void addToken(int col, boolean current);
+
+    // mirror reverses the order of the per column scores
+    public static void mirror(double[] scores) {
+        for (int i = 0, j = scores.length - 1; i < j; i++, j--) {
+            double score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.HashSet;
+import java.util.Set;
+
+// PositionCodec converts positions to and from the two encodings positions travel
+// in between processes, so that game servers, batch jobs and model files can pass
+// positions around without building a Board.Token[][]:
+// - Move strings: the columns played, starting from 1, e.g. "4453". Boards with
+// more than 9 columns continue with letters, so column 10 is 'a'.
+// - Keys: current + mask + bottom, the standard compact key of a position that
+// fits in a long. Adding the bottom row puts a 1 above the tokens of every
+// column, so the key is unique and the column heights can be read back from it.
+// It differs from Position.key, which leaves out the constant bottom row, so
+// that keys can be shared with other solvers that use the standard layout.
+//
+// Positions that don't fit in a long have no unique key of this kind, hash them
+// with a ZobristHash instead.
+public final class PositionCodec {
+    // Highest number of columns a move string can encode, 1 to 9 and then a to z.
+    // Geometry allows no more columns than that
+    public static final int MAX_COLS = Geometry.MAX_COLS;
+
+    private PositionCodec() {
+    }
+
+    // parse returns the position reached by playing moves on an empty board of
+    // geometry. Throws if a move isn't a column of the board, goes into a full
+    // column or comes after a move that won the game
+    public static Position parse(Geometry geometry, CharSequence moves) {
+        Position position = geometry.newPosition();
+        int played = play(position, moves);
+        if (played < moves.length()) {
+            throw new IllegalArgumentException(
+                    "invalid move '" + moves.charAt(played) + "' at index " + played + " of " + moves);
+        }
+        return position;
+    }
+
+    // playMoves plays the columns of moves on position and returns whether they
+    // were all valid and the game is still live. The position is left after the
+    // last valid move
+    public static boolean playMoves(Position position, CharSequence moves) {
+        return play(position, moves) == moves.length();
+    }
+
+    // play plays moves on position until a move is invalid or wins the game and
+    // returns the number of moves played
+    private static int play(Position position, CharSequence moves) {
+        int cols = position.geometry().cols();
+        for (int i = 0; i < moves.length(); i++) {
+            int col = col(moves.charAt(i));
+            if (col < 0 || col >= cols || !position.canPlay(col) || position.isWinningMove(col)) {
+                return i;
+            }
+            position.play(col);
+        }
+        return moves.length();
+    }
+
+    // format returns a move string that reaches position from an empty board. A
+    // position only records where the tokens are, not the order they were played
+    // in, so this is one of the orders that reach it. Throws if no order does,
+    // e.g. for a position where both players have a line
+    public static String format(Position position) {
+        char[] moves = new char[position.moves()];
+        if (!unplay(position.copy(), moves, true, new HashSet<>())) {
+            throw new IllegalArgumentException("position can't be reached by a game");
+        }
+        return new String(moves);
+    }
+
+    // unplay takes back the moves of position, last first, and writes them to
+    // moves. Only the last move may have won the game. Returns false if position
+    // can't be taken back to an empty board.
+    //
+    // Taking back a token of the wrong column can lead to a dead end many moves
+    // later, when the only tokens left on top belong to the wrong player. failed
+    // holds the keys of the positions known to be dead ends, so that no position is
+    // searched twice and the search stays within the number of positions between
+    // the empty board and position
+    private static boolean unplay(Position position, char[] moves, boolean last, Set<Long> failed) {
+        int ply = position.moves();
+        if (ply == 0) {
+            return true;
+        }
+        if (failed.contains(position.key())) {
+            return false;
+        }
+        Geometry geometry = position.geometry();
+        // The top token of the column must belong to the player who moved last
+        for (int i = 0; i < geometry.cols(); i++) {
+            int col = geometry.columnOrder(i);
+            int height = position.height(col);
+            if (height == 0 || position.isCurrent(height - 1, col)) {
+                continue;
+            }
+            position.undo(col);
+            if ((last || !position.isWinningMove(col)) && unplay(position, moves, false, failed)) {
+                moves[ply - 1] = symbol(col);
+                return true;
+            }
+            position.play(col);
+        }
+        failed.add(position.key());
+        return false;
+    }
+
+    // key returns the standard key of position, current + mask + bottom
+    public static long key(Position position) {
+        if (!(position instanceof LongPosition)) {
+            throw new IllegalArgumentException("positions of board " + position.geometry() + " don't fit in a long");
+        }
+        LongPosition longPosition = (LongPosition) position;
+        return longPosition.key() + longPosition.bottom();
+    }
+
+    // fromKey returns the position with the standard key. Throws if key isn't the
+    // key of a position of geometry
+    public static Position fromKey(Geometry geometry, long key) {
+        if (!geometry.fitsInLong()) {
+            throw new IllegalArgumentException("positions of board " + geometry + " don't fit in a long");
+        }
+        LongPosition position = new LongPosition(geometry);
+        // Every column has at least the 1 above its tokens. Without it subtracting
+        // the bottom row would borrow from the next column
+        long columnBits = (1L << geometry.height()) - 1;
+        for (int col = 0; col < geometry.cols(); col++) {
+            if (((key >>> (col * geometry.height())) & columnBits) == 0) {
+                throw new IllegalArgumentException("invalid key " + Long.toHexString(key) + " for board " + geometry);
+            }
+        }
+        if (!position.setKey(key - position.bottom())) {
+            throw new IllegalArgumentException("invalid key " + Long.toHexString(key) + " for board " + geometry);
+        }
+        return position;
+    }
+
+    // col returns the column of a move character, or -1 if it isn't one
+    public static int col(char symbol) {
+        if (symbol >= '1' && symbol <= '9') {
+            return symbol - '1';
+        }
+        if (symbol >= 'a' && symbol <= 'z') {
+            return symbol - 'a' + 9;
+        }
+        return -1;
+    }
+
+    // symbol returns the move character of col
+    public static char symbol(int col) {
+        if (col < 0 || col >= MAX_COLS) {
+            throw new IllegalArgumentException("column " + col + " has no move character");
+        }
+        return (char) (col < 9 ? '1' + col : 'a' + col - 9);
+    }
+}
@@ -0,0 +1,26 @@
+// SearchEngine picks the column to place a token in for the player to move in a
+// position. Engines may play moves on the position while searching but must
+// restore it before returning
+public interface SearchEngine {
+    // getGeometry returns the board the engine plays on
+    Geometry getGeometry();
+
+    // chooseCol fills scores with a score in [0, 1] for each column, where 1 is a
+    // win and 0 is a loss, or TranspositionTable.NO_SCORE for full columns, and
+    // returns the column to play
+    int chooseCol(Position position, double[] scores);
+
+    // isProven returns whether the score of the column the last call to chooseCol
+    // chose is the exact result of the game rather than the estimate of a search
+    // that stopped early. The scores of the other columns may only be bounds that
+    // show they are no better
+    default boolean isProven() {
+        return false;
+    }
+
+    // recordSearch adds the statistics of the last call to chooseCol, which took
+    // nanos, to metrics. Engines that don't keep statistics only record the time
+    default void recordSearch(SearchMetrics metrics, long nanos) {
+        metrics.record(nanos, 0, 0, 0, 0, 0);
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// SearchMetrics counts what the engines do in chooseCol: how many searches ran,
+// how many positions they visited, how they used the transposition table, how deep
+// they went and how long they took. One SearchMetrics can be shared by the AIs
+// and engines of many threads, e.g. the games of a server, and read at any time
+// with snapshot.
+//
+// Recording is cheap enough to leave on. Counters are LongAdders, which stripe
+// their cells between threads so that threads recording at the same time don't
+// contend on one cache line, and every thread records latencies into a histogram
+// of its own that snapshot merges.
+public class SearchMetrics {
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder tableHits = new LongAdder();
+    private final LongAdder tableMisses = new LongAdder();
+    private final LongAdder tableCollisions = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    // histograms holds the latency histogram of every thread that recorded a search
+    private final Queue<LatencyHistogram> histograms = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<LatencyHistogram> latency = ThreadLocal.withInitial(() -> {
+        LatencyHistogram histogram = new LatencyHistogram();
+        this.histograms.add(histogram);
+        return histogram;
+    });
+
+    // record adds one call to chooseCol that took nanos and visited nodes positions
+    // searching depth plies deep, with the given transposition table lookups
+    public void record(long nanos, long nodes, int depth, long tableHits, long tableMisses, long tableCollisions) {
+        this.searches.increment();
+        this.nanos.add(nanos);
+        this.nodes.add(nodes);
+        this.tableHits.add(tableHits);
+        this.tableMisses.add(tableMisses);
+        this.tableCollisions.add(tableCollisions);
+        this.maxDepth.accumulate(depth);
+        LatencyHistogram histogram = this.latency.get();
+        // Only snapshot reads the histogram of another thread, so the lock is almost
+        // never contended
+        synchronized (histogram) {
+            histogram.record(nanos);
+        }
+    }
+
+    // snapshot returns the metrics recorded so far. Searches recorded while the
+    // snapshot is taken may be counted in some of its numbers and not in others
+    public Snapshot snapshot() {
+        LatencyHistogram latency = new LatencyHistogram();
+        for (LatencyHistogram histogram : this.histograms) {
+            synchronized (histogram) {
+                latency.add(histogram);
+            }
+        }
+        return new Snapshot(this.searches.sum(), this.nodes.sum(), this.nanos.sum(), this.tableHits.sum(),
+                this.tableMisses.sum(), this.tableCollisions.sum(), (int) this.maxDepth.get(), latency);
+    }
+
+    // reset sets every metric back to zero, e.g. to measure one game at a time.
+    // Searches recorded during the reset may be partly kept
+    public void reset() {
+        this.searches.reset();
+        this.nodes.reset();
+        this.nanos.reset();
+        this.tableHits.reset();
+        this.tableMisses.reset();
+        this.tableCollisions.reset();
+        this.maxDepth.reset();
+        for (LatencyHistogram histogram : this.histograms) {
+            synchronized (histogram) {
+                histogram.reset();
+            }
+        }
+    }
+
+    // Snapshot holds the metrics at one point in time
+    public static class Snapshot {
+        private final long searches;
+        private final long nodes;
+        private final long nanos;
+        private final long tableHits;
+        private final long tableMisses;
+        private final long tableCollisions;
+        private final int maxDepth;
+        private final LatencyHistogram latency;
+
+        private Snapshot(long searches, long nodes, long nanos, long tableHits, long tableMisses,
+                long tableCollisions, int maxDepth, LatencyHistogram latency) {
+            this.searches = searches;
+            this.nodes = nodes;
+            this.nanos = nanos;
+            this.tableHits = tableHits;
+            this.tableMisses = tableMisses;
+            this.tableCollisions = tableCollisions;
+            this.maxDepth = maxDepth;
+            this.latency = latency;
+        }
+
+        // searches returns the number of calls to chooseCol
+        public long searches() {
+            return this.searches;
+        }
+
+        public long nodes() {
+            return this.nodes;
+        }
+
+        // nodesPerSecond returns the positions visited per second spent in chooseCol
+        public double nodesPerSecond() {
+            return this.nanos == 0 ? 0 : this.nodes * 1e9 / this.nanos;
+        }
+
+        public long tableHits() {
+            return this.tableHits;
+        }
+
+        public long tableMisses() {
+            return this.tableMisses;
+        }
+
+        public long tableCollisions() {
+            return this.tableCollisions;
+        }
+
+        // tableHitRate returns the fraction of transposition table lookups that
+        // found their position
+        public double tableHitRate() {
+            long lookups = this.tableHits + this.tableMisses;
+            return lookups == 0 ? 0 : (double) this.tableHits / lookups;
+        }
+
+        // tableCollisionRate returns the number of slots holding another position
+        // that lookups ran into, per lookup
+        public double tableCollisionRate() {
+            long lookups = this.tableHits + this.tableMisses;
+            return lookups == 0 ? 0 : (double) this.tableCollisions / lookups;
+        }
+
+        // maxDepth returns the most plies any search looked ahead
+        public int maxDepth() {
+            return this.maxDepth;
+        }
+
+        // latency returns the latencies of the calls to chooseCol
+        public LatencyHistogram latency() {
+            return this.latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.join("\n",
+                    String.format("Searches: %d, max depth %d", this.searches, this.maxDepth),
+                    String.format("Nodes: %d (%.0f nodes/s)", this.nodes, nodesPerSecond()),
+                    String.format("Table: %d hits, %d misses (%.1f%% hit rate), %.3f collisions per lookup",
+                            this.tableHits, this.tableMisses, 100 * tableHitRate(), tableCollisionRate()),
+                    String.format("Latency: p50 %s, p99 %s, max %s",
+                            LatencyHistogram.format(this.latency.percentile(0.5)),
+                            LatencyHistogram.format(this.latency.percentile(0.99)),
+                            LatencyHistogram.format(this.latency.max())));
+        }
+    }
+}
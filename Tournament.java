@@ -0,0 +1,298 @@
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Tournament plays games between two engines without a console, to load test the
+// engines and to compare engine configurations. The first plies of every game are
+// random so that the games differ, and the engines take turns playing first.
+//
+// Games are played concurrently on a fixed pool of workers. Every worker owns an
+// instance of both engines and a position it reuses for all of its games, and
+// claims games from a shared counter. Engines that play from a model share the
+// model of the ModelRegistry, so the model is solved or loaded once however many
+// games run at the same time.
+//
+// Usage: java Tournament <games> <threads> <engine 1> <engine 2> [opening plies] [rows cols [win]]
+// where an engine is "model" or "negamax[:depth[:milliseconds per move]]"
+public class Tournament {
+    // Default number of random plies at the start of every game
+    public static final int DEFAULT_OPENING_PLIES = 2;
+
+    private final Supplier<? extends SearchEngine> engine1;
+    private final Supplier<? extends SearchEngine> engine2;
+    private final Geometry geometry;
+    private final int parallelism;
+    // Number of random plies at the start of every game
+    private final int openingPlies;
+    // Game i plays its opening from a random generator seeded with seed + i, so a
+    // tournament can be replayed
+    private final long seed;
+
+    public Tournament(Geometry geometry, Supplier<? extends SearchEngine> engine1,
+            Supplier<? extends SearchEngine> engine2, int parallelism, int openingPlies, long seed) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.engine1 = engine1;
+        this.engine2 = engine2;
+        this.geometry = geometry;
+        this.parallelism = parallelism;
+        this.openingPlies = openingPlies;
+        this.seed = seed;
+    }
+
+    // play plays games games and returns the results
+    public Result play(int games) throws InterruptedException {
+        Worker[] workers = new Worker[this.parallelism];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker();
+        }
+        // The workers record the searches of each engine into metrics shared with
+        // the other workers
+        SearchMetrics[] metrics = {new SearchMetrics(), new SearchMetrics()};
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism);
+        long start = System.nanoTime();
+        try {
+            Future<?>[] futures = new Future<?>[workers.length];
+            for (int i = 0; i < workers.length; i++) {
+                Worker worker = workers[i];
+                futures[i] = pool.submit(() -> worker.run(games, next, metrics));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Result result = new Result();
+        result.nanos = System.nanoTime() - start;
+        result.engines = new SearchMetrics.Snapshot[] {metrics[0].snapshot(), metrics[1].snapshot()};
+        for (Worker worker : workers) {
+            result.add(worker.result);
+        }
+        return result;
+    }
+
+    // Worker plays the games it claims with its own instances of the engines
+    private class Worker {
+        private final SearchEngine[] engines = new SearchEngine[2];
+        private final Position position = Tournament.this.geometry.newPosition();
+        private final double[] scores = new double[Tournament.this.geometry.cols()];
+        // Playable columns for picking a random move
+        private final int[] cols = new int[Tournament.this.geometry.cols()];
+        private final Random random = new Random();
+        private final Result result = new Result();
+
+        Worker() {
+            this.engines[0] = Tournament.this.engine1.get();
+            this.engines[1] = Tournament.this.engine2.get();
+            for (int i = 0; i < this.engines.length; i++) {
+                if (!this.engines[i].getGeometry().equals(Tournament.this.geometry)) {
+                    throw new IllegalArgumentException(
+                            "engine " + (i + 1) + " doesn't play on " + Tournament.this.geometry);
+                }
+            }
+        }
+
+        void run(int games, AtomicInteger next, SearchMetrics[] metrics) {
+            int game;
+            while ((game = next.getAndIncrement()) < games) {
+                play(game, metrics);
+            }
+        }
+
+        private void play(int game, SearchMetrics[] metrics) {
+            Position position = this.position;
+            position.reset();
+            this.random.setSeed(Tournament.this.seed + game);
+            // The engines take turns playing first
+            int first = game % 2;
+            int winner = -1;
+            while (position.moves() < Tournament.this.geometry.cells()) {
+                int engine = (first + position.moves()) % 2;
+                int col = position.moves() < Tournament.this.openingPlies ? randomMove() : -1;
+                if (col == -1) {
+                    long start = System.nanoTime();
+                    col = this.engines[engine].chooseCol(position, this.scores);
+                    long nanos = System.nanoTime() - start;
+                    this.result.latency.record(nanos);
+                    this.engines[engine].recordSearch(metrics[engine], nanos);
+                    this.result.moves++;
+                    if (col < 0 || col >= this.cols.length || !position.canPlay(col)) {
+                        throw new IllegalStateException("engine " + (engine + 1) + " chose invalid column " + col);
+                    }
+                }
+                if (position.isWinningMove(col)) {
+                    winner = engine;
+                    break;
+                }
+                position.play(col);
+            }
+            this.result.games++;
+            if (winner == -1) {
+                this.result.draws++;
+            } else {
+                this.result.wins[winner]++;
+                if (winner == first) {
+                    this.result.firstPlayerWins++;
+                }
+            }
+        }
+
+        // randomMove returns a random playable column that doesn't end the game, or
+        // -1 if there is none
+        private int randomMove() {
+            int count = 0;
+            for (int col = 0; col < this.cols.length; col++) {
+                if (this.position.canPlay(col) && !this.position.isWinningMove(col)) {
+                    this.cols[count++] = col;
+                }
+            }
+            return count == 0 ? -1 : this.cols[this.random.nextInt(count)];
+        }
+    }
+
+    // Result holds the statistics of a tournament. Moves and latencies only count
+    // the moves chosen by the engines, not the random opening moves
+    public static class Result {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final long[] wins = new long[2];
+        private long games;
+        private long moves;
+        private long draws;
+        private long firstPlayerWins;
+        private long nanos;
+        // Search metrics of engine 1 and 2
+        private SearchMetrics.Snapshot[] engines;
+
+        private void add(Result other) {
+            this.latency.add(other.latency);
+            this.wins[0] += other.wins[0];
+            this.wins[1] += other.wins[1];
+            this.games += other.games;
+            this.moves += other.moves;
+            this.draws += other.draws;
+            this.firstPlayerWins += other.firstPlayerWins;
+        }
+
+        public long games() {
+            return this.games;
+        }
+
+        public long moves() {
+            return this.moves;
+        }
+
+        // wins returns the number of games won by engine 1 or 2
+        public long wins(int engine) {
+            return this.wins[engine - 1];
+        }
+
+        public long draws() {
+            return this.draws;
+        }
+
+        public long firstPlayerWins() {
+            return this.firstPlayerWins;
+        }
+
+        public double gamesPerSecond() {
+            return this.games * 1e9 / this.nanos;
+        }
+
+        public double movesPerSecond() {
+            return this.moves * 1e9 / this.nanos;
+        }
+
+        // latency returns the latencies of the engines' moves
+        public LatencyHistogram latency() {
+            return this.latency;
+        }
+
+        // metrics returns the search metrics of engine 1 or 2
+        public SearchMetrics.Snapshot metrics(int engine) {
+            return this.engines[engine - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.join("\n",
+                    String.format("Games: %d in %.2fs (%.1f games/s)", this.games, this.nanos / 1e9,
+                            gamesPerSecond()),
+                    String.format("Engine moves: %d (%.1f moves/s)", this.moves, movesPerSecond()),
+                    String.format("Move latency: p50 %s, p99 %s, max %s",
+                            LatencyHistogram.format(this.latency.percentile(0.5)),
+                            LatencyHistogram.format(this.latency.percentile(0.99)),
+                            LatencyHistogram.format(this.latency.max())),
+                    String.format("Engine 1 wins: %d (%s)", this.wins[0], percent(this.wins[0])),
+                    String.format("Engine 2 wins: %d (%s)", this.wins[1], percent(this.wins[1])),
+                    String.format("Draws: %d (%s)", this.draws, percent(this.draws)),
+                    String.format("First player wins: %d (%s)", this.firstPlayerWins, percent(this.firstPlayerWins)),
+                    "Engine 1 searches:", indent(this.engines[0].toString()),
+                    "Engine 2 searches:", indent(this.engines[1].toString()));
+        }
+
+        private static String indent(String lines) {
+            return "  " + lines.replace("\n", "\n  ");
+        }
+
+        private String percent(long count) {
+            return String.format("%.1f%%", this.games == 0 ? 0 : 100.0 * count / this.games);
+        }
+    }
+
+    // engine returns a supplier of the engine described by spec, see main
+    private static Supplier<SearchEngine> engine(String spec, Geometry geometry) {
+        if (spec.equals("model")) {
+            // Solve or load the model up front so that it isn't timed
+            ModelRegistry.model(geometry);
+            return () -> ModelRegistry.engine(geometry);
+        }
+        if (spec.equals("negamax") || spec.startsWith("negamax:")) {
+            String[] parts = spec.split(":");
+            int depth = parts.length > 1 ? Integer.parseInt(parts[1]) : NegamaxEngine.DEFAULT_MAX_DEPTH;
+            long timeBudget = parts.length > 2 ? Long.parseLong(parts[2]) * 1_000_000 : 0;
+            return () -> {
+                NegamaxEngine engine = new NegamaxEngine(geometry, depth);
+                engine.setTimeBudget(timeBudget);
+                return engine;
+            };
+        }
+        throw new IllegalArgumentException("unknown engine " + spec);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 4) {
+            System.err.println(
+                    "Usage: java Tournament <games> <threads> <engine 1> <engine 2> [opening plies] [rows cols [win]]");
+            System.err.println("Engines: model, negamax[:depth[:milliseconds per move]]");
+            System.exit(1);
+        }
+        int games = Integer.parseInt(args[0]);
+        int threads = Integer.parseInt(args[1]);
+        int openingPlies = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_OPENING_PLIES;
+        Geometry geometry = args.length > 6
+                ? new Geometry(Integer.parseInt(args[5]), Integer.parseInt(args[6]),
+                        args.length > 7 ? Integer.parseInt(args[7]) : Geometry.DEFAULT.winCondition())
+                : Geometry.DEFAULT;
+
+        Supplier<SearchEngine> engine1 = engine(args[2], geometry);
+        Supplier<SearchEngine> engine2 = engine(args[3], geometry);
+        Tournament tournament = new Tournament(geometry, engine1, engine2, threads, openingPlies, System.nanoTime());
+        System.out.println(String.format("Board %s, engine 1 %s, engine 2 %s, %d threads", geometry, args[2],
+                args[3], threads));
+        System.out.println(tournament.play(games));
+    }
+}
@@ -0,0 +1,425 @@
+// TranspositionTable maps a position key to a fixed number of scores, one per
+// column. Keys live in a flat long array and the scores of every entry are packed
+// next to each other in a char array, so neither storing nor looking up a position
+// allocates.
+//
+// The table has three modes:
+// - Unbounded: collisions are resolved with linear probing and the table doubles
+// in size once it is 3/4 full. Every stored entry is kept.
+// - Bounded: the table never grows past a fixed byte budget. Slots are grouped in
+// buckets of two, the first slot is depth-preferred and the second slot is
+// always-replace, so entries with the most work behind them survive the longest.
+// - Concurrent: a bounded table that can be shared between threads. Buckets are
+// split into stripes that each have their own lock, so threads only contend when
+// they touch buckets of the same stripe.
+//
+// Tables that don't fit on the heap are kept off heap by OffHeapTranspositionTable,
+// which overrides every method.
+public class TranspositionTable {
+    // NO_SCORE marks a column without a score, e.g. because the column is full
+    public static final double NO_SCORE = -1;
+    // Scores are in [0, 1] and quantized to 16 bits. The largest 16 bit value is
+    // reserved for NO_SCORE
+    private static final int NO_SCORE_VALUE = 0xFFFF;
+    private static final double SCORE_SCALE = 0xFFFE;
+    // Number of slots in a bucket of a bounded table
+    private static final int BUCKET_SIZE = 2;
+    // Number of lock stripes of a concurrent table
+    private static final int STRIPES = 1024;
+    // Counters are kept per stripe. A stripe's counters are padded to a cache line
+    // so that threads updating neighbouring stripes don't share cache lines
+    private static final int COUNTER_STRIDE = 8;
+    private static final int SIZE = 0;
+    private static final int HITS = 1;
+    private static final int MISSES = 2;
+    private static final int COLLISIONS = 3;
+    private static final int EVICTIONS = 4;
+    // Longest array the JVM reliably allocates
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    // Number of scores stored for each key
+    private final int width;
+    // keys stores key + 1 for each slot so that 0 can mark an empty slot. Only a
+    // key of -1, every bit set, would wrap around to 0, and no key is -1. Hashed
+    // keys of a WidePosition never use the sign bit. Keys of a LongPosition can,
+    // but within a column of h tokens its key is at most 2^(h + 1) - 2, see
+    // LongPosition.setKey, so no column of the key has all of its bits set
+    private long[] keys;
+    // values stores the quantized scores of slot i at [i * width, (i + 1) * width)
+    private char[] values;
+    // depths stores the depth of each slot of a bounded table, null if unbounded
+    private final byte[] depths;
+    // locks has one lock per stripe of a concurrent table, null otherwise
+    private final Object[] locks;
+
+    // counters holds the number of occupied slots and the counters to size the
+    // table for every stripe, see COUNTER_STRIDE. A collision is a probe that runs
+    // into a slot holding another key, an eviction is an entry overwritten by
+    // another key
+    private final long[] counters;
+
+    // Creates an unbounded table with room for capacity entries before it grows
+    public TranspositionTable(int width, int capacity) {
+        this(width, unboundedSlots(width, capacity), false, 1);
+    }
+
+    // Creates a table without slots for subclasses that store their entries
+    // elsewhere
+    TranspositionTable(int width) {
+        this(width, 0, false, 1);
+    }
+
+    private TranspositionTable(int width, int slots, boolean bounded, int stripes) {
+        this.width = width;
+        this.keys = new long[slots];
+        this.values = new char[slots * width];
+        this.depths = bounded ? new byte[slots] : null;
+        this.locks = stripes > 1 ? new Object[stripes] : null;
+        for (int i = 0; this.locks != null && i < stripes; i++) {
+            this.locks[i] = new Object();
+        }
+        this.counters = new long[stripes * COUNTER_STRIDE];
+    }
+
+    // bounded creates a table that never uses more than maxBytes for its entries.
+    // The entries are Java arrays, so a table holds at most maxSlots(width)
+    // entries, however large maxBytes is. Larger tables are kept off heap, see
+    // OffHeapTranspositionTable
+    public static TranspositionTable bounded(int width, long maxBytes) {
+        return new TranspositionTable(width, boundedSlots(width, maxBytes), true, 1);
+    }
+
+    // concurrent creates a bounded table that can be shared between threads
+    public static TranspositionTable concurrent(int width, long maxBytes) {
+        int slots = boundedSlots(width, maxBytes);
+        return new TranspositionTable(width, slots, true, Math.min(STRIPES, slots / BUCKET_SIZE));
+    }
+
+    private static int boundedSlots(int width, long maxBytes) {
+        long buckets = maxBytes / (BUCKET_SIZE * slotBytes(width));
+        if (buckets < 1) {
+            throw new IllegalArgumentException("maxBytes is too small for a single bucket");
+        }
+        // Round down to a power of two so that we can mask the hash
+        buckets = Math.min(Long.highestOneBit(buckets), maxSlots(width) / BUCKET_SIZE);
+        return (int) buckets * BUCKET_SIZE;
+    }
+
+    private static int unboundedSlots(int width, int capacity) {
+        // Round the capacity up to a power of two so that we can mask the hash
+        int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        if (capacity > maxSlots(width) || slots <= 0) {
+            throw new IllegalArgumentException("capacity " + capacity + " is more than the " + maxSlots(width)
+                    + " entries a table of width " + width + " can hold");
+        }
+        return slots;
+    }
+
+    // maxSlots returns the most slots a table of width columns can have: a power
+    // of two such that the scores of all slots still fit in one array
+    static int maxSlots(int width) {
+        return Integer.highestOneBit(MAX_ARRAY_LENGTH / width);
+    }
+
+    public boolean isBounded() {
+        return this.depths != null;
+    }
+
+    public boolean isConcurrent() {
+        return this.locks != null;
+    }
+
+    public int width() {
+        return this.width;
+    }
+
+    public long size() {
+        return sumCounter(SIZE);
+    }
+
+    public long capacity() {
+        return this.keys.length;
+    }
+
+    // memoryBytes returns the number of bytes used by the entries of the table
+    public long memoryBytes() {
+        return (long) this.keys.length * slotBytes(this.width) - (isBounded() ? 0 : this.keys.length);
+    }
+
+    public long hits() {
+        return sumCounter(HITS);
+    }
+
+    public long misses() {
+        return sumCounter(MISSES);
+    }
+
+    public long collisions() {
+        return sumCounter(COLLISIONS);
+    }
+
+    public long evictions() {
+        return sumCounter(EVICTIONS);
+    }
+
+    // get copies the scores stored for key into scores and returns whether the key
+    // was found
+    public boolean get(long key, double[] scores) {
+        int hash = hash(key);
+        if (this.locks == null) {
+            return get(key, hash, scores);
+        }
+        synchronized (this.locks[stripe(hash)]) {
+            return get(key, hash, scores);
+        }
+    }
+
+    // put stores scores for key, overwriting any scores already stored for it.
+    // depth is the amount of work behind the scores, e.g. the number of empty
+    // cells left on the board. Bounded tables prefer keeping deeper entries
+    public void put(long key, int depth, double[] scores) {
+        int hash = hash(key);
+        if (this.locks == null) {
+            put(key, hash, depth, scores);
+            return;
+        }
+        synchronized (this.locks[stripe(hash)]) {
+            put(key, hash, depth, scores);
+        }
+    }
+
+    // contains returns whether the table has an entry for key without counting a
+    // hit or a miss
+    public boolean contains(long key) {
+        int hash = hash(key);
+        if (this.locks == null) {
+            return findEntry(key, hash) >= 0;
+        }
+        synchronized (this.locks[stripe(hash)]) {
+            return findEntry(key, hash) >= 0;
+        }
+    }
+
+    // keys returns the keys of all entries in no particular order. It must not run
+    // while other threads write to the table
+    long[] keys() {
+        long[] keys = new long[(int) size()];
+        int i = 0;
+        for (long slotKey : this.keys) {
+            if (slotKey != 0) {
+                keys[i++] = slotKey - 1;
+            }
+        }
+        return keys;
+    }
+
+    // getQuantized copies the quantized scores of key into values without counting
+    // a hit or a miss. It must not run while other threads write to the table
+    boolean getQuantized(long key, char[] values) {
+        int slot = findEntry(key, hash(key));
+        if (slot < 0) {
+            return false;
+        }
+        System.arraycopy(this.values, slot * this.width, values, 0, this.width);
+        return true;
+    }
+
+    private boolean get(long key, int hash, double[] scores) {
+        int counter = stripe(hash) * COUNTER_STRIDE;
+        int slot = findEntry(key, hash);
+        if (slot < 0) {
+            this.counters[counter + MISSES]++;
+            return false;
+        }
+        this.counters[counter + HITS]++;
+        int offset = slot * this.width;
+        for (int i = 0; i < this.width; i++) {
+            scores[i] = dequantize(this.values[offset + i]);
+        }
+        return true;
+    }
+
+    private void put(long key, int hash, int depth, double[] scores) {
+        int slot = isBounded() ? replaceBucketSlot(key, hash, depth) : insertSlot(key, hash);
+        int offset = slot * this.width;
+        for (int i = 0; i < this.width; i++) {
+            this.values[offset + i] = quantize(scores[i]);
+        }
+    }
+
+    // findEntry returns the slot holding key, or -1 if the table has no entry for it
+    private int findEntry(long key, int hash) {
+        int slot = isBounded() ? findBucketSlot(key, hash) : findSlot(key, hash);
+        return slot >= 0 && this.keys[slot] == key + 1 ? slot : -1;
+    }
+
+    // insertSlot returns the slot of key in an unbounded table, claiming an empty
+    // slot if the key is new
+    private int insertSlot(long key, int hash) {
+        int slot = findSlot(key, hash);
+        if (this.keys[slot] == 0) {
+            // Grow before the probe sequences get long
+            if (4 * (this.counters[SIZE] + 1) > 3 * this.keys.length) {
+                resize();
+                slot = findSlot(key, hash);
+            }
+            this.keys[slot] = key + 1;
+            this.counters[SIZE]++;
+        }
+        return slot;
+    }
+
+    // findSlot returns the slot holding key, or the empty slot where key belongs
+    private int findSlot(long key, int hash) {
+        long[] keys = this.keys;
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+        while (keys[slot] != 0 && keys[slot] != key + 1) {
+            this.counters[COLLISIONS]++;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // findBucketSlot returns the slot holding key in a bounded table, or -1
+    private int findBucketSlot(long key, int hash) {
+        int first = hash & (this.keys.length - BUCKET_SIZE);
+        for (int slot = first; slot < first + BUCKET_SIZE; slot++) {
+            if (this.keys[slot] == key + 1) {
+                return slot;
+            }
+        }
+        if (this.keys[first] != 0) {
+            this.counters[stripe(hash) * COUNTER_STRIDE + COLLISIONS]++;
+        }
+        return -1;
+    }
+
+    // replaceBucketSlot returns the slot of key in a bounded table. A new key takes
+    // the depth-preferred slot if it is at least as deep as the entry there, which
+    // then moves down to the always-replace slot. Otherwise the new key takes the
+    // always-replace slot
+    private int replaceBucketSlot(long key, int hash, int depth) {
+        int counter = stripe(hash) * COUNTER_STRIDE;
+        int first = hash & (this.keys.length - BUCKET_SIZE);
+        int second = first + 1;
+        if (this.keys[first] == key + 1) {
+            this.depths[first] = (byte) Math.max(this.depths[first], depth);
+            return first;
+        }
+        if (this.keys[second] == key + 1) {
+            this.depths[second] = (byte) depth;
+            return second;
+        }
+        int slot = second;
+        if (this.keys[first] == 0 || depth >= this.depths[first]) {
+            // Demote the depth-preferred entry to the always-replace slot
+            if (this.keys[first] != 0) {
+                moveSlot(first, second, counter);
+            } else {
+                this.counters[counter + SIZE]++;
+            }
+            slot = first;
+        } else if (this.keys[second] != 0) {
+            this.counters[counter + EVICTIONS]++;
+        } else {
+            this.counters[counter + SIZE]++;
+        }
+        this.keys[slot] = key + 1;
+        this.depths[slot] = (byte) depth;
+        return slot;
+    }
+
+    // moveSlot copies the entry in slot from over the entry in slot to
+    private void moveSlot(int from, int to, int counter) {
+        if (this.keys[to] != 0) {
+            this.counters[counter + EVICTIONS]++;
+        } else {
+            this.counters[counter + SIZE]++;
+        }
+        this.keys[to] = this.keys[from];
+        this.depths[to] = this.depths[from];
+        System.arraycopy(this.values, from * this.width, this.values, to * this.width, this.width);
+    }
+
+    // stripe returns the stripe of the bucket of hash. The bucket is the hash
+    // without its lowest bit, so a bucket always maps to the same stripe
+    private int stripe(int hash) {
+        return (hash >>> 1) & (this.counters.length / COUNTER_STRIDE - 1);
+    }
+
+    private long sumCounter(int counter) {
+        long sum = 0;
+        for (int i = counter; i < this.counters.length; i += COUNTER_STRIDE) {
+            sum += this.counters[i];
+        }
+        return sum;
+    }
+
+    // slotBytes returns the bytes used by a single slot: the key, the scores and
+    // the depth of bounded tables
+    private static long slotBytes(int width) {
+        return Long.BYTES + (long) width * Character.BYTES + 1;
+    }
+
+    private void resize() {
+        if (this.keys.length * 2 > maxSlots(this.width) || this.keys.length * 2 <= 0) {
+            throw new IllegalStateException("table is full at " + this.keys.length + " slots, use a bounded table");
+        }
+        long[] newKeys = new long[this.keys.length * 2];
+        char[] newValues = new char[newKeys.length * this.width];
+        for (int slot = 0; slot < this.keys.length; slot++) {
+            if (this.keys[slot] == 0) {
+                continue;
+            }
+            int newSlot = hash(this.keys[slot] - 1) & (newKeys.length - 1);
+            while (newKeys[newSlot] != 0) {
+                newSlot = (newSlot + 1) & (newKeys.length - 1);
+            }
+            newKeys[newSlot] = this.keys[slot];
+            System.arraycopy(this.values, slot * this.width, newValues, newSlot * this.width, this.width);
+        }
+        this.keys = newKeys;
+        this.values = newValues;
+    }
+
+    // hash mixes all bits of the key into the low bits (murmur3 finalizer). Board
+    // keys differ mostly in their high bits, which would otherwise all land in the
+    // same slot
+    private static int hash(long key) {
+        return (int) mix(key);
+    }
+
+    // mix returns the 64 bit murmur3 finalizer of key, for tables with more slots
+    // than an int can index
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    // round rounds scores to the precision they are stored with, so that scores
+    // that were just computed equal the scores later read back from a table
+    public static void round(double[] scores) {
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = dequantize(quantize(scores[i]));
+        }
+    }
+
+    static char quantize(double score) {
+        if (score == NO_SCORE) {
+            return (char) NO_SCORE_VALUE;
+        }
+        return (char) Math.round(score * SCORE_SCALE);
+    }
+
+    static double dequantize(char value) {
+        if (value == NO_SCORE_VALUE) {
+            return NO_SCORE;
+        }
+        return value / SCORE_SCALE;
+    }
+}
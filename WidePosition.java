@@ -0,0 +1,351 @@
+import java.util.Arrays;
+
+// WidePosition is a Position for the boards whose bitboards don't fit in a single
+// long, like 9x7. A bitboard takes two longs, lo holding bits 0 to 63 and hi bits
+// 64 to 127, with the same column layout as LongPosition, so a column can be split
+// over both words. Shifts carry bits from hi into lo, which keeps win detection a
+// fixed number of shifts and ands like on a single long.
+//
+// The key of a 128 bit position doesn't fit in a long, so key returns a 63 bit
+// hash of it. Two positions can share a key, which is fine for the depth limited
+// search these boards are played with, but rules out solving them into a model.
+public final class WidePosition extends Position {
+    // Bits per column including the sentinel row
+    private final int height;
+    private final int rows;
+    private final int cols;
+    private final int winCondition;
+    // bottom has the bottom row of each column set
+    private final long bottomLo;
+    private final long bottomHi;
+    // board has every row except the sentinel row set
+    private final long boardLo;
+    private final long boardHi;
+    // Number of tokens in each column
+    private final int[] heights;
+
+    // Tokens of the player to move
+    private long currentLo;
+    private long currentHi;
+    // Tokens of both players
+    private long maskLo;
+    private long maskHi;
+
+    // Creates an empty position
+    public WidePosition(Geometry geometry) {
+        super(geometry, 0);
+        this.height = geometry.height();
+        this.rows = geometry.rows();
+        this.cols = geometry.cols();
+        this.winCondition = geometry.winCondition();
+        long bottomLo = 0L;
+        long bottomHi = 0L;
+        long boardLo = 0L;
+        long boardHi = 0L;
+        for (int col = 0; col < this.cols; col++) {
+            bottomLo |= shiftLeftLo(1L, col * this.height);
+            bottomHi |= shiftLeftHi(1L, col * this.height);
+            for (int row = 0; row < this.rows; row++) {
+                boardLo |= shiftLeftLo(1L, col * this.height + row);
+                boardHi |= shiftLeftHi(1L, col * this.height + row);
+            }
+        }
+        this.bottomLo = bottomLo;
+        this.bottomHi = bottomHi;
+        this.boardLo = boardLo;
+        this.boardHi = boardHi;
+        this.heights = new int[this.cols];
+    }
+
+    public WidePosition(WidePosition other) {
+        super(other.geometry, other.moves);
+        this.height = other.height;
+        this.rows = other.rows;
+        this.cols = other.cols;
+        this.winCondition = other.winCondition;
+        this.bottomLo = other.bottomLo;
+        this.bottomHi = other.bottomHi;
+        this.boardLo = other.boardLo;
+        this.boardHi = other.boardHi;
+        this.heights = other.heights.clone();
+        this.currentLo = other.currentLo;
+        this.currentHi = other.currentHi;
+        this.maskLo = other.maskLo;
+        this.maskHi = other.maskHi;
+    }
+
+    @Override
+    public WidePosition copy() {
+        return new WidePosition(this);
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(this.heights, 0);
+        this.currentLo = 0L;
+        this.currentHi = 0L;
+        this.maskLo = 0L;
+        this.maskHi = 0L;
+        this.moves = 0;
+    }
+
+    // currentLo and currentHi return the tokens of the player to move
+    public long currentLo() {
+        return this.currentLo;
+    }
+
+    public long currentHi() {
+        return this.currentHi;
+    }
+
+    // maskLo and maskHi return the tokens of both players
+    public long maskLo() {
+        return this.maskLo;
+    }
+
+    public long maskHi() {
+        return this.maskHi;
+    }
+
+    @Override
+    public long key() {
+        // The sum of current and mask, carrying from lo into hi
+        long lo = this.currentLo + this.maskLo;
+        long hi = this.currentHi + this.maskHi + (Long.compareUnsigned(lo, this.currentLo) < 0 ? 1 : 0);
+        return hash(lo, hi);
+    }
+
+    @Override
+    public long mirrorKey() {
+        // Mirroring moves whole columns, so the per column sums of the key are
+        // computed on the mirrored columns instead of carrying across the words
+        long lo = 0L;
+        long hi = 0L;
+        for (int col = 0; col < this.cols; col++) {
+            int offset = col * this.height;
+            long column = column(this.currentLo, this.currentHi, offset) + column(this.maskLo, this.maskHi, offset);
+            int mirrored = (this.cols - 1 - col) * this.height;
+            lo |= shiftLeftLo(column, mirrored);
+            hi |= shiftLeftHi(column, mirrored);
+        }
+        return hash(lo, hi);
+    }
+
+    @Override
+    public boolean canPlay(int col) {
+        return this.heights[col] < this.rows;
+    }
+
+    @Override
+    public int height(int col) {
+        return this.heights[col];
+    }
+
+    @Override
+    public void play(int col) {
+        // The tokens of the player to move become the tokens of the opponent
+        this.currentLo ^= this.maskLo;
+        this.currentHi ^= this.maskHi;
+        int bit = col * this.height + this.heights[col]++;
+        this.maskLo |= shiftLeftLo(1L, bit);
+        this.maskHi |= shiftLeftHi(1L, bit);
+        this.moves++;
+    }
+
+    @Override
+    public void undo(int col) {
+        int bit = col * this.height + --this.heights[col];
+        this.maskLo ^= shiftLeftLo(1L, bit);
+        this.maskHi ^= shiftLeftHi(1L, bit);
+        this.currentLo ^= this.maskLo;
+        this.currentHi ^= this.maskHi;
+        this.moves--;
+    }
+
+    @Override
+    public boolean isWinningMove(int col) {
+        int bit = col * this.height + this.heights[col];
+        return alignment(this.currentLo | shiftLeftLo(1L, bit), this.currentHi | shiftLeftHi(1L, bit));
+    }
+
+    @Override
+    public boolean canWinNext() {
+        // The cells where a token can be placed, adding the bottom row carries up
+        // to the first empty row of every column
+        long possibleLo = this.maskLo + this.bottomLo;
+        long possibleHi = this.maskHi + this.bottomHi + (Long.compareUnsigned(possibleLo, this.maskLo) < 0 ? 1 : 0);
+        possibleLo &= this.boardLo;
+        possibleHi &= this.boardHi;
+        // Vertically only the cell on top of the column can complete a line
+        long verticalLo = possibleLo;
+        long verticalHi = possibleHi;
+        for (int i = 1; i < this.winCondition; i++) {
+            verticalLo &= shiftLeftLo(this.currentLo, i);
+            verticalHi &= shiftLeftHi(this.currentLo, this.currentHi, i);
+        }
+        return (verticalLo | verticalHi) != 0 || completesLine(possibleLo, possibleHi, this.height)
+                || completesLine(possibleLo, possibleHi, this.height - 1)
+                || completesLine(possibleLo, possibleHi, this.height + 1);
+    }
+
+    @Override
+    public int threatCount(int col) {
+        int bit = col * this.height + this.heights[col];
+        long tokensLo = this.currentLo | shiftLeftLo(1L, bit);
+        long tokensHi = this.currentHi | shiftLeftHi(1L, bit);
+        long emptyLo = this.boardLo & ~(this.maskLo | shiftLeftLo(1L, bit));
+        long emptyHi = this.boardHi & ~(this.maskHi | shiftLeftHi(1L, bit));
+        // Vertically only the cell on top of the column can complete a line
+        long cellsLo = emptyLo;
+        long cellsHi = emptyHi;
+        for (int i = 1; i < this.winCondition; i++) {
+            cellsLo &= shiftLeftLo(tokensLo, i);
+            cellsHi &= shiftLeftHi(tokensLo, tokensHi, i);
+        }
+        // Horizontal and both diagonals, see completesLine
+        for (int shift = this.height - 1; shift <= this.height + 1; shift++) {
+            long beforeLo = emptyLo;
+            long beforeHi = emptyHi;
+            for (int a = 0; a < this.winCondition; a++) {
+                long afterLo = beforeLo;
+                long afterHi = beforeHi;
+                for (int b = 1; b < this.winCondition - a; b++) {
+                    afterLo &= shiftRightLo(tokensLo, tokensHi, b * shift);
+                    afterHi &= shiftRightHi(tokensHi, b * shift);
+                }
+                cellsLo |= afterLo;
+                cellsHi |= afterHi;
+                beforeLo &= shiftLeftLo(tokensLo, (a + 1) * shift);
+                beforeHi &= shiftLeftHi(tokensLo, tokensHi, (a + 1) * shift);
+            }
+        }
+        return Long.bitCount(cellsLo) + Long.bitCount(cellsHi);
+    }
+
+    @Override
+    public boolean isOccupied(int row, int col) {
+        return row < this.heights[col];
+    }
+
+    @Override
+    public boolean isCurrent(int row, int col) {
+        int bit = col * this.height + row;
+        return ((shiftRightLo(this.currentLo, this.currentHi, bit)) & 1L) != 0;
+    }
+
+    @Override
+    protected void addToken(int col, boolean current) {
+        int bit = col * this.height + this.heights[col]++;
+        this.maskLo |= shiftLeftLo(1L, bit);
+        this.maskHi |= shiftLeftHi(1L, bit);
+        if (current) {
+            this.currentLo |= shiftLeftLo(1L, bit);
+            this.currentHi |= shiftLeftHi(1L, bit);
+        }
+        this.moves++;
+    }
+
+    // alignment returns whether the tokens have winCondition tokens in a row in
+    // any of the four directions
+    private boolean alignment(long lo, long hi) {
+        // Vertical, horizontal and both diagonals
+        return alignment(lo, hi, 1) || alignment(lo, hi, this.height) || alignment(lo, hi, this.height - 1)
+                || alignment(lo, hi, this.height + 1);
+    }
+
+    private boolean alignment(long lo, long hi, int shift) {
+        // Keep the tokens that have winCondition - 1 more tokens after them
+        long streakLo = lo;
+        long streakHi = hi;
+        for (int i = 1; i < this.winCondition; i++) {
+            streakLo &= shiftRightLo(lo, hi, i * shift);
+            streakHi &= shiftRightHi(hi, i * shift);
+        }
+        return (streakLo | streakHi) != 0;
+    }
+
+    // completesLine returns whether any of the possible cells completes a line of
+    // the player to move in the direction of shift. A cell completes a line if it
+    // has a tokens before it and b tokens after it with a + b = winCondition - 1
+    private boolean completesLine(long possibleLo, long possibleHi, int shift) {
+        // before holds the cells with a tokens before them, starting with a = 0
+        long beforeLo = possibleLo;
+        long beforeHi = possibleHi;
+        for (int a = 0; a < this.winCondition; a++) {
+            // after holds the cells with winCondition - 1 - a tokens after them
+            long afterLo = beforeLo;
+            long afterHi = beforeHi;
+            for (int b = 1; b < this.winCondition - a; b++) {
+                afterLo &= shiftRightLo(this.currentLo, this.currentHi, b * shift);
+                afterHi &= shiftRightHi(this.currentHi, b * shift);
+            }
+            if ((afterLo | afterHi) != 0) {
+                return true;
+            }
+            beforeLo &= shiftLeftLo(this.currentLo, (a + 1) * shift);
+            beforeHi &= shiftLeftHi(this.currentLo, this.currentHi, (a + 1) * shift);
+        }
+        return false;
+    }
+
+    // column returns the height bits of the column starting at offset
+    private long column(long lo, long hi, int offset) {
+        return shiftRightLo(lo, hi, offset) & ((1L << this.height) - 1);
+    }
+
+    // shiftRightLo returns the lo word of the 128 bit value shifted right by shift
+    private static long shiftRightLo(long lo, long hi, int shift) {
+        if (shift == 0) {
+            return lo;
+        }
+        if (shift < Long.SIZE) {
+            return (lo >>> shift) | (hi << (Long.SIZE - shift));
+        }
+        return hi >>> (shift - Long.SIZE);
+    }
+
+    // shiftRightHi returns the hi word of the 128 bit value shifted right by shift
+    private static long shiftRightHi(long hi, int shift) {
+        return shift < Long.SIZE ? hi >>> shift : 0L;
+    }
+
+    // shiftLeftLo returns the lo word of the 64 bit value shifted left by shift
+    private static long shiftLeftLo(long value, int shift) {
+        return shift < Long.SIZE ? value << shift : 0L;
+    }
+
+    // shiftLeftHi returns the hi word of the 64 bit value shifted left by shift
+    private static long shiftLeftHi(long value, int shift) {
+        if (shift == 0) {
+            return 0L;
+        }
+        if (shift < Long.SIZE) {
+            return value >>> (Long.SIZE - shift);
+        }
+        return value << (shift - Long.SIZE);
+    }
+
+    // shiftLeftHi returns the hi word of the 128 bit value shifted left by shift
+    private static long shiftLeftHi(long lo, long hi, int shift) {
+        if (shift < Long.SIZE) {
+            return (hi << shift) | shiftLeftHi(lo, shift);
+        }
+        return lo << (shift - Long.SIZE);
+    }
+
+    // hash mixes the 128 bit key into 63 bits. Keys are never negative, so they
+    // never hit the key TranspositionTable reserves for empty slots
+    private static long hash(long lo, long hi) {
+        return mix(mix(lo) ^ hi) & Long.MAX_VALUE;
+    }
+
+    // mix is the murmur3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
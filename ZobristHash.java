@@ -0,0 +1,64 @@
+import java.util.SplittableRandom;
+
+// ZobristHash hashes positions of any board into 64 bits, e.g. to index tables
+// too large for the unique keys of PositionCodec, or positions that don't fit in
+// a long at all. Every cell has a random number for each player and the hash of a
+// position is the xor of the numbers of its tokens, so playing or taking back a
+// move updates the hash with a single xor instead of hashing the board again.
+//
+// The numbers come from a fixed seed, so every process hashes a position to the
+// same value and hashes can be stored and shared. Different positions can share a
+// hash, with a chance of about one in 2^64 for any two positions.
+public final class ZobristHash {
+    // Seed of the random numbers. Changing it changes every stored hash
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final int rows;
+    private final int cells;
+    // numbers[player * cells + col * rows + row] is the number of a token of
+    // player in the cell, player 0 being the one who moved first
+    private final long[] numbers;
+
+    public ZobristHash(Geometry geometry) {
+        this.rows = geometry.rows();
+        this.cells = geometry.cells();
+        this.numbers = new long[2 * this.cells];
+        SplittableRandom random = new SplittableRandom(SEED);
+        for (int i = 0; i < this.numbers.length; i++) {
+            this.numbers[i] = random.nextLong();
+        }
+    }
+
+    // hash returns the hash of position, computed from all of its tokens
+    public long hash(Position position) {
+        Geometry geometry = position.geometry();
+        // The player to move is the first player after an even number of moves
+        int current = position.moves() & 1;
+        long hash = 0L;
+        for (int col = 0; col < geometry.cols(); col++) {
+            for (int row = 0; row < position.height(col); row++) {
+                int player = position.isCurrent(row, col) ? current : current ^ 1;
+                hash ^= number(player, col, row);
+            }
+        }
+        return hash;
+    }
+
+    // play returns the hash of position after col is played, given its hash
+    // before. Call it before playing col on position
+    public long play(long hash, Position position, int col) {
+        // The player to move places the token
+        return hash ^ number(position.moves() & 1, col, position.height(col));
+    }
+
+    // undo returns the hash of position after col is taken back, given its hash
+    // before. Call it after taking col back on position
+    public long undo(long hash, Position position, int col) {
+        return play(hash, position, col);
+    }
+
+    // number returns the number of a token of player in the cell at row of col
+    private long number(int player, int col, int row) {
+        return this.numbers[player * this.cells + col * this.rows + row];
+    }
+}